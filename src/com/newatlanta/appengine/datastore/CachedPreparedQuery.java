@@ -0,0 +1,280 @@
+/*
+ * Copyright 2009 New Atlanta Communications, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.newatlanta.appengine.datastore;
+
+import static com.google.appengine.api.datastore.DatastoreServiceFactory.getDatastoreService;
+import static com.google.appengine.api.datastore.FetchOptions.Builder.withLimit;
+import static com.google.appengine.api.memcache.MemcacheServiceFactory.getMemcacheService;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortPredicate;
+import com.google.appengine.api.memcache.Expiration;
+
+/**
+ * A <code>PreparedQuery</code> that caches query results in memcache. Only the
+ * keys of the results are cached (the query is executed as a keys-only query);
+ * entities are then read via {@link CachingDatastoreService#get(Iterable)}, so
+ * they're normally read from memcache as well.
+ * <p>
+ * Cached results are keyed by a hash of the query and fetch options, plus a
+ * generation counter for the query kind that's incremented whenever entities
+ * of that kind are written or deleted via a <code>CachingDatastoreService</code>
+ * (see {@link CachingDatastoreService#setQueryCaching(String, boolean)}); cached
+ * results of previous generations are never read again, and are left to expire
+ * (see {@link VersionCounter}).
+ * Queries with more than <code>MAX_CACHED_RESULTS</code> results are not cached.
+ *
+ * @author <a href="mailto:vbonfanti@gmail.com">Vince Bonfanti</a>
+ */
+public class CachedPreparedQuery implements PreparedQuery {
+
+    public static final int MAX_CACHED_RESULTS = 1000;
+
+    private static final String GENERATION_PREFIX = "CachedPreparedQuery.generation:";
+    private static final String RESULTS_PREFIX = "CachedPreparedQuery.results:";
+
+    private CachingDatastoreService datastore;
+    private Query query;
+    private Expiration expiration;
+    private String queryString;
+
+    CachedPreparedQuery( CachingDatastoreService datastore, Query query,
+                            Expiration expiration ) {
+        this.datastore = datastore;
+        this.query = query;
+        this.expiration = expiration;
+        this.queryString = toString( query );
+    }
+
+    public List<Entity> asList( FetchOptions fetchOptions ) {
+        List<Key> keys = getKeys( fetchOptions );
+        if ( keys == null ) { // not cached
+            return getDatastoreService().prepare( query ).asList( fetchOptions );
+        }
+        return getEntities( keys );
+    }
+
+    public Iterable<Entity> asIterable( final FetchOptions fetchOptions ) {
+        return new Iterable<Entity>() {
+            public Iterator<Entity> iterator() {
+                return asIterator( fetchOptions );
+            }
+        };
+    }
+
+    public Iterable<Entity> asIterable() {
+        return asIterable( null );
+    }
+
+    public Iterator<Entity> asIterator( FetchOptions fetchOptions ) {
+        List<Key> keys = getKeys( fetchOptions );
+        if ( keys == null ) { // not cached
+            PreparedQuery preparedQuery = getDatastoreService().prepare( query );
+            return ( fetchOptions != null ? preparedQuery.asIterator( fetchOptions )
+                                          : preparedQuery.asIterator() );
+        }
+        return getEntities( keys ).iterator();
+    }
+
+    public Iterator<Entity> asIterator() {
+        return asIterator( null );
+    }
+
+    public Entity asSingleEntity() throws TooManyResultsException {
+        List<Entity> entities = asList( withLimit( 2 ) );
+        if ( entities.size() > 1 ) { // let the datastore throw the exception
+            return getDatastoreService().prepare( query ).asSingleEntity();
+        }
+        return ( entities.isEmpty() ? null : entities.get( 0 ) );
+    }
+
+    public int countEntities() {
+        List<Key> keys = getKeys( null );
+        if ( keys == null ) { // not cached
+            return getDatastoreService().prepare( query ).countEntities();
+        }
+        return keys.size();
+    }
+
+    /**
+     * Returns the keys of the query results, from memcache if cached; otherwise,
+     * executes the query as a keys-only query and caches the keys. Returns
+     * <code>null</code> if there are too many results to cache.
+     */
+    @SuppressWarnings("unchecked")
+    private List<Key> getKeys( FetchOptions fetchOptions ) {
+        Long generation = getGeneration( query.getKind() );
+        if ( generation == null ) {
+            return null; // memcache not available
+        }
+        String resultsKey = RESULTS_PREFIX + generation + ":" +
+                                hash( queryString + toString( fetchOptions ) );
+        List<Key> keys = (List<Key>)getMemcacheService().get( resultsKey );
+        if ( keys != null ) {
+            return keys;
+        }
+        FetchOptions keysOptions = withLimit( MAX_CACHED_RESULTS + 1 );
+        if ( fetchOptions != null ) {
+            if ( fetchOptions.getLimit() != null ) {
+                keysOptions.limit( Math.min( fetchOptions.getLimit(), MAX_CACHED_RESULTS + 1 ) );
+            }
+            if ( fetchOptions.getOffset() != null ) {
+                keysOptions.offset( fetchOptions.getOffset() );
+            }
+        }
+        List<Entity> results = getDatastoreService().prepare( keysOnly( query ) )
+                                                        .asList( keysOptions );
+        if ( results.size() > MAX_CACHED_RESULTS ) {
+            return null;
+        }
+        keys = new ArrayList<Key>( EntityKeyCollection.wrap( results ) );
+        getMemcacheService().put( resultsKey, keys, expiration );
+        return keys;
+    }
+
+    /**
+     * Returns the entities for the specified keys, in order. Keys-only queries
+     * return entities with no properties, like the datastore.
+     */
+    private List<Entity> getEntities( List<Key> keys ) {
+        List<Entity> entities = new ArrayList<Entity>( keys.size() );
+        if ( query.isKeysOnly() ) {
+            for ( Key key : keys ) {
+                entities.add( new Entity( key ) );
+            }
+            return entities;
+        }
+        Map<Key, Entity> entityMap = datastore.get( keys );
+        for ( Key key : keys ) {
+            Entity entity = entityMap.get( key );
+            if ( entity != null ) { // deleted within a transaction?
+                entities.add( entity );
+            }
+        }
+        return entities;
+    }
+
+    private static Query keysOnly( Query query ) {
+        if ( query.isKeysOnly() ) {
+            return query;
+        }
+        Query keysQuery = new Query( query.getKind() );
+        if ( query.getAncestor() != null ) {
+            keysQuery.setAncestor( query.getAncestor() );
+        }
+        for ( FilterPredicate filter : query.getFilterPredicates() ) {
+            keysQuery.addFilter( filter.getPropertyName(), filter.getOperator(),
+                                    filter.getValue() );
+        }
+        for ( SortPredicate sort : query.getSortPredicates() ) {
+            keysQuery.addSort( sort.getPropertyName(), sort.getDirection() );
+        }
+        return keysQuery.setKeysOnly();
+    }
+
+    /**
+     * Returns the current generation of the specified kind.
+     */
+    static Long getGeneration( String kind ) {
+        return VersionCounter.get( GENERATION_PREFIX + kind );
+    }
+
+    /**
+     * Invalidates the cached query results for the specified kinds.
+     */
+    static void invalidate( Collection<String> kinds ) {
+        for ( String kind : kinds ) {
+            VersionCounter.increment( GENERATION_PREFIX + kind );
+        }
+    }
+
+    private static String toString( Query query ) {
+        StringBuffer sb = new StringBuffer( query.getKind() );
+        if ( query.getAncestor() != null ) {
+            sb.append( " ancestor " ).append( query.getAncestor() );
+        }
+        for ( FilterPredicate filter : query.getFilterPredicates() ) {
+            sb.append( " filter " ).append( filter.getPropertyName() ).append( ' ' )
+              .append( filter.getOperator() ).append( ' ' );
+            appendValue( sb, filter.getValue() );
+        }
+        for ( SortPredicate sort : query.getSortPredicates() ) {
+            sb.append( " sort " ).append( sort.getPropertyName() ).append( ' ' )
+              .append( sort.getDirection() );
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Appends a filter value qualified by its class, so that values of different
+     * types with the same string representation (<code>"1"</code> and
+     * <code>1L</code>) don't map to the same cached results.
+     */
+    private static void appendValue( StringBuffer sb, Object value ) {
+        if ( value instanceof Collection<?> ) { // IN operator
+            sb.append( '[' );
+            for ( Object element : (Collection<?>)value ) {
+                appendValue( sb, element );
+                sb.append( ',' );
+            }
+            sb.append( ']' );
+        } else if ( value == null ) {
+            sb.append( "null" );
+        } else {
+            sb.append( value.getClass().getName() ).append( ':' ).append( value );
+        }
+    }
+
+    private static String toString( FetchOptions fetchOptions ) {
+        if ( fetchOptions == null ) {
+            return "";
+        }
+        return " limit " + fetchOptions.getLimit() + " offset " + fetchOptions.getOffset();
+    }
+
+    /**
+     * Memcache keys are limited in size, so cached results are keyed by a hash
+     * of the query.
+     */
+    private static String hash( String s ) {
+        try {
+            byte[] digest = MessageDigest.getInstance( "SHA-1" ).digest( s.getBytes( "UTF-8" ) );
+            StringBuffer sb = new StringBuffer();
+            for ( byte b : digest ) {
+                sb.append( Integer.toHexString( ( b & 0xff ) | 0x100 ).substring( 1 ) );
+            }
+            return sb.toString();
+        } catch ( NoSuchAlgorithmException e ) {
+            throw new RuntimeException( e );
+        } catch ( UnsupportedEncodingException e ) {
+            throw new RuntimeException( e );
+        }
+    }
+}
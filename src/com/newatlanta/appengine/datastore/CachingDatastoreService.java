@@ -36,10 +36,18 @@ import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.ConcurrentModificationException;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.logging.Logger;
 
 import javax.servlet.ServletException;
@@ -47,6 +55,7 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import com.google.appengine.api.datastore.Blob;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreTimeoutException;
 import com.google.appengine.api.datastore.Entity;
@@ -77,11 +86,22 @@ import com.google.appengine.api.utils.SystemProperty;
  * <li>Supports a write-behind option (the default) that queues all datastore writes
  * as background tasks (except for transactions, which are always write-through
  * directly to the datastore).</li>
+ * <li>Supports a coalesced write-behind option that collects the keys of written
+ * entities in memcache, and writes them with bulk puts from a single drain task
+ * that runs at most once per coalescing window (see {@link #setCoalescingWindow(int)}),
+ * rather than queuing a task per write.</li>
  * <li>A watchdog task makes sure the write-behind task is always available.</li>
  * <li>If the write-behind task isn't available, defaults to write-through to insure
  * no loss of data.
  * <li>Supports configurable expiration of memcache entities (the default is no
  * expiration).
+ * <li>Supports cache policies per entity kind (or kind prefix), which override the
+ * cache option and expiration, or bypass memcache entirely, for entities of that
+ * kind (see {@link #setCachePolicy(String, CacheOption, Expiration)}).
+ * <li>Optionally caches entities per entity kind within the instance, in front of
+ * memcache (see {@link #setLocalCaching(String, boolean)}).
+ * <li>Optionally caches query results per entity kind (see
+ * {@link #setQueryCaching(String, boolean)} and {@link CachedPreparedQuery}).
  * </ul>
  * If you plan to use the write-behind option, first configure the write-behind task
  * within <code>web.xml</code>:
@@ -127,6 +147,17 @@ public class CachingDatastoreService extends HttpServlet implements DatastoreSer
     private static final String QUEUE_NAME = "write-behind-task";
     private static final String TASK_CONTENT_TYPE = "application/x-java-serialized-object";
     private static final String WATCHDOG_KEY = "CachingDatastoreService.watchdog";
+    private static final String DRAIN_KEY = "CachingDatastoreService.drain";
+    private static final String PENDING_HEAD_KEY = "CachingDatastoreService.pending.head";
+    private static final String PENDING_TAIL_KEY = "CachingDatastoreService.pending.tail";
+    private static final String PENDING_SLOT_PREFIX = "CachingDatastoreService.pending:";
+    
+    private static final int MAX_BULK_PUT_ENTITIES = 500;
+    private static final int MAX_BULK_PUT_BYTES = 1000 * 1024;
+    
+    private static int coalescingWindow = 1; // seconds
+    
+    private static final LocalEntityCache localCache = new LocalEntityCache( 1024 * 1024, 1000 );
     
     private static final Logger log = Logger.getLogger( CachingDatastoreService.class.getName() );
     
@@ -146,12 +177,72 @@ public class CachingDatastoreService extends HttpServlet implements DatastoreSer
                     SystemProperty.Environment.Value.Development );
     }
     
+    /**
+     * <code>NO_CACHE</code> reads and writes entities directly from and to the
+     * datastore, bypassing memcache; see {@link CachingDatastoreService#setCachePolicy}.
+     */
     public enum CacheOption {
-        WRITE_THROUGH, WRITE_BEHIND 
+        WRITE_THROUGH, WRITE_BEHIND, WRITE_BEHIND_COALESCED, NO_CACHE
+    }
+    
+    /**
+     * Gets the number of seconds the drain task waits to collect written keys
+     * for the <code>WRITE_BEHIND_COALESCED</code> option.
+     */
+    public static int getCoalescingWindow() {
+        return coalescingWindow;
     }
     
-    private CacheOption cacheOption;
-    private Expiration expiration;
+    /**
+     * Sets the number of seconds the drain task waits to collect written keys
+     * for the <code>WRITE_BEHIND_COALESCED</code> option; the default is 1 second.
+     * Longer windows coalesce more writes into each bulk put, but delay writing
+     * entities to the datastore.
+     */
+    public static void setCoalescingWindow( int seconds ) {
+        if ( seconds < 0 ) {
+            throw new IllegalArgumentException( "invalid coalescing window: " + seconds );
+        }
+        coalescingWindow = seconds;
+    }
+    
+    /**
+     * Sets the maximum size, in KB, of the in-instance entity cache; the default
+     * is 1024KB (see {@link #setLocalCaching(String, boolean)}).
+     */
+    public static void setLocalCacheSize( int size ) {
+        if ( size < 0 ) {
+            throw new IllegalArgumentException( "invalid local cache size: " + size );
+        }
+        localCache.setMaxBytes( size * 1024L );
+    }
+    
+    /**
+     * Sets the number of milliseconds entities in the in-instance entity cache
+     * are trusted before checking whether they've been written by another
+     * instance; the default is 1000 milliseconds. With a time-to-live of 0,
+     * every get checks whether the entity has been written, which still avoids
+     * reading and deserializing the entity from memcache.
+     */
+    public static void setLocalCacheTtl( int millis ) {
+        if ( millis < 0 ) {
+            throw new IllegalArgumentException( "invalid local cache ttl: " + millis );
+        }
+        localCache.setTtlMillis( millis );
+    }
+    
+    /**
+     * Clears the in-instance entity cache.
+     */
+    public static void clearLocalCache() {
+        localCache.clear();
+    }
+    
+    private CachePolicy defaultPolicy;
+    private Map<String, CachePolicy> kindPolicies = new ConcurrentHashMap<String, CachePolicy>();
+    private Map<String, CachePolicy> kindPrefixPolicies = new ConcurrentHashMap<String, CachePolicy>();
+    private Set<String> queryKinds = new CopyOnWriteArraySet<String>();
+    private Set<String> localKinds = new CopyOnWriteArraySet<String>();
     
     public CachingDatastoreService() {
         this( CacheOption.WRITE_BEHIND, null );
@@ -166,8 +257,180 @@ public class CachingDatastoreService extends HttpServlet implements DatastoreSer
     }
     
     public CachingDatastoreService( CacheOption cacheOption, Expiration expiration ) {
-        this.cacheOption = cacheOption;
-        this.expiration = expiration;
+        defaultPolicy = new CachePolicy( cacheOption, expiration );
+    }
+    
+    /**
+     * Sets the cache option and memcache expiration for entities of the specified
+     * kind, overriding the options specified when this instance was created. If
+     * <code>kind</code> ends with "*", the policy applies to all kinds that start
+     * with the preceding prefix; the longest matching prefix is used if a kind
+     * matches more than one, and exact matches are preferred over prefixes.
+     * 
+     * @return The <code>CachingDatastoreService</code> instance, for method chaining.
+     */
+    public CachingDatastoreService setCachePolicy( String kind, CacheOption cacheOption,
+                                                        Expiration expiration ) {
+        CachePolicy policy = new CachePolicy( cacheOption, expiration );
+        if ( policy.isWriteBehind() && queryKinds.contains( kind ) ) {
+            throw new IllegalArgumentException( "queries are cached for " + kind );
+        }
+        if ( kind.endsWith( "*" ) ) {
+            kindPrefixPolicies.put( kind.substring( 0, kind.length() - 1 ), policy );
+        } else {
+            kindPolicies.put( kind, policy );
+        }
+        return this;
+    }
+    
+    /**
+     * Enables or disables caching the results of queries of the specified kind
+     * (see {@link CachedPreparedQuery}). Cached results are invalidated when
+     * entities of the kind are written or deleted, so entities of the kind are
+     * always written through to the datastore, and all instances that write
+     * them must enable query caching for the kind.
+     * 
+     * @return The <code>CachingDatastoreService</code> instance, for method chaining.
+     */
+    public CachingDatastoreService setQueryCaching( String kind, boolean enabled ) {
+        if ( !enabled ) {
+            queryKinds.remove( kind );
+            return this;
+        }
+        // pin the policy of the kind, so that it can't become write-behind
+        CachePolicy policy = getCachePolicy( kind );
+        kindPolicies.put( kind, new CachePolicy( policy.isWriteBehind() ?
+                CacheOption.WRITE_THROUGH : policy.cacheOption, policy.expiration ) );
+        queryKinds.add( kind );
+        return this;
+    }
+    
+    /**
+     * Enables or disables caching entities of the specified kind within this
+     * instance, in front of memcache. Entities are invalidated by a stamp in
+     * memcache whenever they're written, but may be read from the in-instance
+     * cache for a short time after being written by another instance (see
+     * {@link #setLocalCacheTtl(int)}). Every <code>CachingDatastoreService</code>
+     * that writes entities of the kind, in every instance, must enable local
+     * caching for the kind.
+     * 
+     * @return The <code>CachingDatastoreService</code> instance, for method chaining.
+     */
+    public CachingDatastoreService setLocalCaching( String kind, boolean enabled ) {
+        if ( enabled ) {
+            localKinds.add( kind );
+        } else {
+            localKinds.remove( kind );
+        }
+        return this;
+    }
+    
+    /**
+     * Updates the in-instance cache after entities are written, and invalidates
+     * them in other instances.
+     */
+    private void updateLocalCache( Iterable<Entity> entities ) {
+        if ( !localKinds.isEmpty() ) {
+            for ( Entity entity : entities ) {
+                if ( localKinds.contains( entity.getKey().getKind() ) ) {
+                    localCache.put( entity, localCache.invalidate( entity.getKey() ) );
+                }
+            }
+        }
+    }
+    
+    private void invalidateLocalCache( Iterable<Key> keys ) {
+        if ( !localKinds.isEmpty() ) {
+            for ( Key key : keys ) {
+                if ( localKinds.contains( key.getKind() ) ) {
+                    localCache.invalidate( key );
+                }
+            }
+        }
+    }
+    
+    /**
+     * Invalidates the cached query results for the kinds of the specified keys
+     * after entities are written or deleted. Returns the keys.
+     */
+    private <T extends Iterable<Key>> T invalidateQueries( T keys ) {
+        if ( !queryKinds.isEmpty() ) {
+            Set<String> kinds = new HashSet<String>();
+            for ( Key key : keys ) {
+                if ( queryKinds.contains( key.getKind() ) ) {
+                    kinds.add( key.getKind() );
+                }
+            }
+            if ( !kinds.isEmpty() ) {
+                CachedPreparedQuery.invalidate( kinds );
+            }
+        }
+        return keys;
+    }
+    
+    private Key invalidateQueries( Key key ) {
+        invalidateQueries( Collections.singletonList( key ) );
+        return key;
+    }
+    
+    /**
+     * Invalidates the cached query results and the in-instance cache for the
+     * specified keys after entities are written or deleted within a transaction.
+     * If the transaction was begun by a <code>CachingDatastoreService</code> the
+     * invalidation is deferred until it commits; otherwise, a read between the
+     * invalidation and the commit could cache pre-commit entities or results
+     * that are stale until the next write. Returns the keys.
+     */
+    private <T extends Iterable<Key>> T invalidate( Transaction txn, T keys ) {
+        if ( txn instanceof CachingTransaction ) {
+            ((CachingTransaction)txn).addWritten( this, keys );
+            return keys;
+        }
+        invalidateLocalCache( keys );
+        return invalidateQueries( keys );
+    }
+    
+    private CachePolicy getCachePolicy( Key key ) {
+        return getCachePolicy( key.getKind() );
+    }
+    
+    private CachePolicy getCachePolicy( String kind ) {
+        CachePolicy policy = kindPolicies.get( kind );
+        if ( policy != null ) {
+            return policy;
+        }
+        policy = defaultPolicy;
+        int prefixLength = -1;
+        for ( Map.Entry<String, CachePolicy> entry : kindPrefixPolicies.entrySet() ) {
+            if ( kind.startsWith( entry.getKey() ) && ( entry.getKey().length() > prefixLength ) ) {
+                policy = entry.getValue();
+                prefixLength = entry.getKey().length();
+            }
+        }
+        return policy;
+    }
+    
+    /**
+     * The cache option and memcache expiration for a kind of entity.
+     */
+    private static class CachePolicy {
+        
+        private final CacheOption cacheOption;
+        private final Expiration expiration;
+        
+        private CachePolicy( CacheOption cacheOption, Expiration expiration ) {
+            this.cacheOption = cacheOption;
+            this.expiration = expiration;
+        }
+        
+        private boolean isCached() {
+            return ( cacheOption != CacheOption.NO_CACHE );
+        }
+        
+        private boolean isWriteBehind() {
+            return ( cacheOption == CacheOption.WRITE_BEHIND ) ||
+                        ( cacheOption == CacheOption.WRITE_BEHIND_COALESCED );
+        }
     }
     
     /**
@@ -181,11 +444,29 @@ public class CachingDatastoreService extends HttpServlet implements DatastoreSer
     
     @Override
     public Entity get( Transaction txn, Key key ) throws EntityNotFoundException {
-        MemcacheService memcache = getMemcacheService();
-        Entity entity = (Entity)memcache.get( key );
-        if ( entity == null ) {
-            entity = getDatastoreService().get( txn, key ); // throws EntityNotFoundException
-            memcache.put( key, entity, expiration );
+        txn = unwrap( txn );
+        Long stamp = null;
+        if ( ( txn == null ) && localKinds.contains( key.getKind() ) ) {
+            Entity entity = localCache.get( key );
+            if ( entity != null ) {
+                return entity;
+            }
+            stamp = localCache.getStamp( key ); // before reading the entity
+        }
+        CachePolicy policy = getCachePolicy( key );
+        Entity entity;
+        if ( !policy.isCached() ) {
+            entity = getDatastoreService().get( txn, key );
+        } else {
+            MemcacheService memcache = getMemcacheService();
+            entity = (Entity)memcache.get( key );
+            if ( entity == null ) {
+                entity = getDatastoreService().get( txn, key ); // throws EntityNotFoundException
+                memcache.put( key, entity, policy.expiration );
+            }
+        }
+        if ( stamp != null ) {
+            localCache.put( entity, stamp );
         }
         return entity;
     }
@@ -199,8 +480,65 @@ public class CachingDatastoreService extends HttpServlet implements DatastoreSer
     }
     
     @Override
-    @SuppressWarnings("unchecked")
     public Map<Key, Entity> get( Transaction txn, Iterable<Key> keys ) {
+        txn = unwrap( txn );
+        List<Key> localKeys = new ArrayList<Key>();
+        if ( ( txn == null ) && !localKinds.isEmpty() ) {
+            for ( Key key : keys ) {
+                if ( localKinds.contains( key.getKind() ) ) {
+                    localKeys.add( key );
+                }
+            }
+        }
+        if ( localKeys.isEmpty() ) {
+            return getShared( txn, keys );
+        }
+        Map<Key, Entity> entities = localCache.getAll( localKeys );
+        localKeys.removeAll( entities.keySet() );
+        Map<Key, Long> stamps = ( localKeys.isEmpty() ? new HashMap<Key, Long>()
+                                    : localCache.getStamps( localKeys ) );
+        List<Key> keyList = new ArrayList<Key>();
+        for ( Key key : keys ) {
+            if ( !entities.containsKey( key ) ) {
+                keyList.add( key );
+            }
+        }
+        if ( !keyList.isEmpty() ) {
+            Map<Key, Entity> sharedEntities = getShared( txn, keyList );
+            for ( Entity entity : sharedEntities.values() ) {
+                Long stamp = stamps.get( entity.getKey() );
+                if ( stamp != null ) {
+                    localCache.put( entity, stamp );
+                }
+            }
+            entities.putAll( sharedEntities );
+        }
+        return entities;
+    }
+    
+    /**
+     * Gets entities from memcache, or from the datastore if not in memcache.
+     */
+    @SuppressWarnings("unchecked")
+    private Map<Key, Entity> getShared( Transaction txn, Iterable<Key> keys ) {
+        List<Key> uncachedKeys = null;
+        for ( Key key : keys ) {
+            if ( !getCachePolicy( key ).isCached() ) {
+                uncachedKeys = new ArrayList<Key>();
+                break;
+            }
+        }
+        if ( uncachedKeys != null ) { // get uncached entities directly
+            List<Key> cachedKeys = new ArrayList<Key>();
+            for ( Key key : keys ) {
+                ( getCachePolicy( key ).isCached() ? cachedKeys : uncachedKeys ).add( key );
+            }
+            Map<Key, Entity> entities = getDatastoreService().get( txn, uncachedKeys );
+            if ( !cachedKeys.isEmpty() ) {
+                entities.putAll( getShared( txn, cachedKeys ) );
+            }
+            return entities;
+        }
         Map<Key, Entity> entities = (Map)getMemcacheService().getAll( (Collection)keys );
         if ( ( entities == null ) || entities.isEmpty() ) {
             return getAndCache( txn, keys );
@@ -217,25 +555,72 @@ public class CachingDatastoreService extends HttpServlet implements DatastoreSer
         return entities;
     }
 
-    @SuppressWarnings("unchecked")
     private Map<Key, Entity> getAndCache( Transaction txn, Iterable<Key> keys ) {
         Map<Key, Entity> entities = getDatastoreService().get( txn, keys );
-        getMemcacheService().putAll( (Map)entities, expiration );
+        putAllCached( entities );
         return entities;
     }
     
+    /**
+     * Puts entities into memcache, with as few calls as possible for entities
+     * with different expirations; entities that aren't cached are skipped.
+     */
+    @SuppressWarnings("unchecked")
+    private void putAllCached( Map<Key, Entity> entities ) {
+        Map<CachePolicy, Map<Key, Entity>> policyMap = groupByPolicy( entities.values() );
+        for ( Map.Entry<CachePolicy, Map<Key, Entity>> entry : policyMap.entrySet() ) {
+            if ( entry.getKey().isCached() ) {
+                getMemcacheService().putAll( (Map)entry.getValue(), entry.getKey().expiration );
+            }
+        }
+    }
+    
+    private Map<CachePolicy, Map<Key, Entity>> groupByPolicy( Iterable<Entity> entities ) {
+        Map<CachePolicy, Map<Key, Entity>> policyMap =
+                            new LinkedHashMap<CachePolicy, Map<Key, Entity>>();
+        for ( Entity entity : entities ) {
+            CachePolicy policy = getCachePolicy( entity.getKey() );
+            Map<Key, Entity> entityMap = policyMap.get( policy );
+            if ( entityMap == null ) {
+                entityMap = new HashMap<Key, Entity>();
+                policyMap.put( policy, entityMap );
+            }
+            entityMap.put( entity.getKey(), entity );
+        }
+        return policyMap;
+    }
+    
     @Override
     public Key put( Entity entity ) {
         entity = completeKey( entity );
+        Key key = putEntity( entity );
+        updateLocalCache( Collections.singletonList( entity ) );
+        return key;
+    }
+    
+    private Key putEntity( Entity entity ) {
         Key key = entity.getKey();
+        CachePolicy policy = getCachePolicy( key );
+        if ( !policy.isCached() ) {
+            return invalidateQueries( getDatastoreService().put( entity ) );
+        }
         MemcacheService memcache = getMemcacheService();
         memcache.setErrorHandler( new StrictErrorHandler() );
         try {
-            memcache.put( key, entity, expiration );
-            if ( ( cacheOption == CacheOption.WRITE_BEHIND ) && watchDogIsAlive() ) {
-                // queue write-behind task only if not already one queued for this key
-                if ( memcache.put( keyToString( key ), null, null, ADD_ONLY_IF_NOT_PRESENT ) ) {
-                    queue.add( payload( serialize( key ), TASK_CONTENT_TYPE ) );
+            memcache.put( key, entity, policy.expiration );
+            if ( policy.isWriteBehind() && watchDogIsAlive() ) {
+                if ( policy.cacheOption == CacheOption.WRITE_BEHIND_COALESCED ) {
+                    // the drain task writes each pending key once, however many
+                    // times it was added
+                    addPending( Collections.singletonList( key ) );
+                } else if ( memcache.put( keyToString( key ), null, null, ADD_ONLY_IF_NOT_PRESENT ) ) {
+                    // queue write-behind task only if not already one queued for this key
+                    try {
+                        queue.add( payload( serialize( key ), TASK_CONTENT_TYPE ) );
+                    } catch ( Exception e ) {
+                        memcache.delete( keyToString( key ) );
+                        throw e;
+                    }
                 }
                 return key;
             }
@@ -246,7 +631,7 @@ public class CachingDatastoreService extends HttpServlet implements DatastoreSer
         }
         // if WRITE_THROUGH, or failed to write memcache, or failed to queue
         // write-behind task, then write directly to datastore
-        return getDatastoreService().put( entity );
+        return invalidateQueries( getDatastoreService().put( entity ) );
     }
     
     /**
@@ -258,8 +643,13 @@ public class CachingDatastoreService extends HttpServlet implements DatastoreSer
             return put( entity );
         }
         entity = completeKey( entity );
-        getMemcacheService().put( entity.getKey(), entity, expiration );
-        return getDatastoreService().put( txn, entity );
+        CachePolicy policy = getCachePolicy( entity.getKey() );
+        if ( policy.isCached() ) {
+            getMemcacheService().put( entity.getKey(), entity, policy.expiration );
+        }
+        Key key = getDatastoreService().put( unwrap( txn ), entity );
+        invalidate( txn, Collections.singletonList( key ) );
+        return key;
     }
 
     /**
@@ -280,17 +670,50 @@ public class CachingDatastoreService extends HttpServlet implements DatastoreSer
         return newEntity;
     }
 
+    /**
+     * Entities with different cache policies are written separately; entities
+     * that are written directly to the datastore are written first, so that
+     * they exist before any (cached) entities that may refer to them. The keys
+     * are returned in the same order as the entities.
+     */
     @Override
-    @SuppressWarnings("unchecked")
     public List<Key> put( Iterable<Entity> entities ) {
-        Map<Key, Entity> entityMap = getEntityMap( entities );
+        List<Entity> entityList = completeKeys( entities );
+        Map<CachePolicy, Map<Key, Entity>> policyMap = groupByPolicy( entityList );
+        for ( Map.Entry<CachePolicy, Map<Key, Entity>> entry : policyMap.entrySet() ) {
+            if ( !entry.getKey().isWriteBehind() ) {
+                put( entry.getKey(), entry.getValue() );
+            }
+        }
+        for ( Map.Entry<CachePolicy, Map<Key, Entity>> entry : policyMap.entrySet() ) {
+            if ( entry.getKey().isWriteBehind() ) {
+                put( entry.getKey(), entry.getValue() );
+            }
+        }
+        updateLocalCache( entityList );
+        List<Key> keyList = new ArrayList<Key>( entityList.size() );
+        for ( Entity entity : entityList ) {
+            keyList.add( entity.getKey() );
+        }
+        return keyList;
+    }
+    
+    @SuppressWarnings("unchecked")
+    private List<Key> put( CachePolicy policy, Map<Key, Entity> entityMap ) {
+        if ( !policy.isCached() ) {
+            return invalidateQueries( getDatastoreService().put( entityMap.values() ) );
+        }
         MemcacheService memcache = getMemcacheService();
         memcache.setErrorHandler( new StrictErrorHandler() );
         try {
-            memcache.putAll( (Map)entityMap, expiration );
-            if ( ( cacheOption == CacheOption.WRITE_BEHIND ) && watchDogIsAlive() ) {
+            memcache.putAll( (Map)entityMap, policy.expiration );
+            if ( policy.isWriteBehind() && watchDogIsAlive() ) {
                 List<Key> keyList = new ArrayList<Key>( entityMap.keySet() );
-                queue.add( payload( serialize( keyList ), TASK_CONTENT_TYPE ) );
+                if ( policy.cacheOption == CacheOption.WRITE_BEHIND_COALESCED ) {
+                    addPending( keyList );
+                } else {
+                    queue.add( payload( serialize( keyList ), TASK_CONTENT_TYPE ) );
+                }
                 return keyList;
             }
         } catch ( Exception e ) {
@@ -300,7 +723,67 @@ public class CachingDatastoreService extends HttpServlet implements DatastoreSer
         }
         // if WRITE_THROUGH, or failed to write memcache, or failed to queue
         // write-behind task, then write directly to datastore
-        return getDatastoreService().put( entities );
+        return invalidateQueries( getDatastoreService().put( entityMap.values() ) );
+    }
+    
+    /**
+     * Appends keys to the list of pending keys in memcache, and queues the drain
+     * task if it isn't already queued. The list is a range of numbered memcache
+     * slots between a head and tail counter; the drain task advances the head.
+     * If the tail counter is evicted, it restarts at 0 and the head is reset to
+     * match. Throws an exception if the keys can't be guaranteed to be drained,
+     * in which case the entities must be written directly to the datastore.
+     */
+    @SuppressWarnings("unchecked")
+    private static void addPending( List<Key> keys ) throws IOException {
+        MemcacheService memcache = getMemcacheService();
+        memcache.setErrorHandler( new StrictErrorHandler() );
+        Long tail = memcache.increment( PENDING_TAIL_KEY, keys.size(), Long.valueOf( 0 ) );
+        Long head = null;
+        Map<Object, Object> slots = new HashMap<Object, Object>();
+        if ( tail != null ) {
+            long first = tail.longValue() - keys.size();
+            for ( int i = 0; i < keys.size(); i++ ) {
+                slots.put( PENDING_SLOT_PREFIX + ( first + i ), keys.get( i ) );
+            }
+            memcache.putAll( slots );
+            head = memcache.increment( PENDING_HEAD_KEY, 0, Long.valueOf( 0 ) );
+            if ( ( head != null ) && ( head.longValue() > tail.longValue() ) ) {
+                // the tail was evicted; the drain task never advances the head
+                // past the tail, so slots restart at 0 (see doDrainTask)
+                memcache.put( PENDING_HEAD_KEY, Long.valueOf( 0 ) );
+                head = memcache.increment( PENDING_HEAD_KEY, 0, Long.valueOf( 0 ) );
+            }
+            if ( ( head != null ) && ( head.longValue() > first ) ) {
+                // a drain task started after the tail was incremented, and may
+                // have skipped the slots if it read them before they were written
+                Map<Object, Object> skipped = memcache.getAll( slots.keySet() );
+                if ( ( skipped != null ) && !skipped.isEmpty() ) {
+                    memcache.deleteAll( skipped.keySet() );
+                    head = null;
+                }
+            }
+        }
+        if ( head == null ) {
+            throw new IOException( "failed to add pending write-behind keys" );
+        }
+        queueDrainTask( coalescingWindow * 1000L );
+    }
+    
+    /**
+     * Queues the drain task, if it isn't already queued.
+     */
+    private static void queueDrainTask( long countdownMillis ) {
+        MemcacheService memcache = getMemcacheService();
+        if ( memcache.put( DRAIN_KEY, null, null, ADD_ONLY_IF_NOT_PRESENT ) ) {
+            try {
+                queue.add( method( Method.GET ).param( "drain", DRAIN_KEY )
+                                            .countdownMillis( countdownMillis ) );
+            } catch ( RuntimeException e ) {
+                memcache.delete( DRAIN_KEY ); // so the next write queues the task
+                throw e;
+            }
+        }
     }
     
     private static byte[] serialize( Object object ) throws IOException {
@@ -319,22 +802,25 @@ public class CachingDatastoreService extends HttpServlet implements DatastoreSer
      * Don't use write-behind cache with transactions.
      */
     @Override
-    @SuppressWarnings("unchecked")
     public List<Key> put( Transaction txn, Iterable<Entity> entities ) {
         if ( txn == null ) {
             return put( entities );
         }
-        getMemcacheService().putAll( (Map)getEntityMap( entities ), expiration );
-        return getDatastoreService().put( txn, entities );
+        List<Entity> entityList = completeKeys( entities );
+        Map<Key, Entity> entityMap = new HashMap<Key, Entity>();
+        for ( Entity entity : entityList ) {
+            entityMap.put( entity.getKey(), entity );
+        }
+        putAllCached( entityMap );
+        return invalidate( txn, getDatastoreService().put( unwrap( txn ), entityList ) );
     }
     
-    private Map<Key, Entity> getEntityMap( Iterable<Entity> entities ) {
-        Map<Key, Entity> entityMap = new HashMap<Key, Entity>();
+    private List<Entity> completeKeys( Iterable<Entity> entities ) {
+        List<Entity> entityList = new ArrayList<Entity>();
         for ( Entity entity : entities ) {
-            entity = completeKey( entity );
-            entityMap.put( entity.getKey(), entity );
+            entityList.add( completeKey( entity ) );
         }
-        return entityMap;
+        return entityList;
     }
     
     @Override
@@ -355,8 +841,9 @@ public class CachingDatastoreService extends HttpServlet implements DatastoreSer
     @Override
     @SuppressWarnings("unchecked")
     public void delete( Transaction txn, Iterable<Key> keys ) {
-        getDatastoreService().delete( txn, keys );
+        getDatastoreService().delete( unwrap( txn ), keys );
         getMemcacheService().deleteAll( (Collection)keys );
+        invalidate( txn, keys );
     }
 
     @Override
@@ -369,35 +856,140 @@ public class CachingDatastoreService extends HttpServlet implements DatastoreSer
         return getDatastoreService().allocateIds( parent, kind, num );
     }
 
+    /**
+     * Returns a transaction that invalidates cached query results and locally
+     * cached entities for the entities written within it after it commits.
+     */
     @Override
     public Transaction beginTransaction() {
-        return getDatastoreService().beginTransaction();
+        return new CachingTransaction( getDatastoreService().beginTransaction() );
     }
 
     @Override
     public Collection<Transaction> getActiveTransactions() {
-        return getDatastoreService().getActiveTransactions();
+        List<Transaction> txnList = new ArrayList<Transaction>();
+        for ( Transaction txn : getDatastoreService().getActiveTransactions() ) {
+            txnList.add( CachingTransaction.wrap( txn ) );
+        }
+        return txnList;
     }
 
     @Override
     public Transaction getCurrentTransaction() {
-        return getDatastoreService().getCurrentTransaction();
+        return CachingTransaction.wrap( getDatastoreService().getCurrentTransaction() );
     }
 
     @Override
     public Transaction getCurrentTransaction( Transaction returnedIfNoTxn ) {
-        return getDatastoreService().getCurrentTransaction( returnedIfNoTxn );
+        Transaction txn = getDatastoreService().getCurrentTransaction( unwrap( returnedIfNoTxn ) );
+        return ( txn == unwrap( returnedIfNoTxn ) ? returnedIfNoTxn : CachingTransaction.wrap( txn ) );
+    }
+    
+    private static Transaction unwrap( Transaction txn ) {
+        return ( txn instanceof CachingTransaction ? ((CachingTransaction)txn).txn : txn );
+    }
+    
+    /**
+     * A transaction begun by a <code>CachingDatastoreService</code>, which
+     * defers invalidating cached query results and locally cached entities for
+     * the entities written within it until it commits. Datastore transactions
+     * are bound to the thread that began them, so the wrappers of active
+     * transactions are tracked per thread for {@link #getCurrentTransaction()}
+     * and {@link #getActiveTransactions()}.
+     */
+    private static class CachingTransaction implements Transaction {
+        
+        private static final ThreadLocal<Map<Transaction, CachingTransaction>> active =
+            new ThreadLocal<Map<Transaction, CachingTransaction>>() {
+                @Override
+                protected Map<Transaction, CachingTransaction> initialValue() {
+                    return new IdentityHashMap<Transaction, CachingTransaction>();
+                }
+            };
+        
+        private final Transaction txn;
+        
+        // keys written within the transaction, by the service that wrote them
+        private final Map<CachingDatastoreService, Set<Key>> written =
+                            new IdentityHashMap<CachingDatastoreService, Set<Key>>();
+        
+        private CachingTransaction( Transaction txn ) {
+            this.txn = txn;
+            active.get().put( txn, this );
+        }
+        
+        private static Transaction wrap( Transaction txn ) {
+            CachingTransaction cachingTxn = ( txn == null ? null : active.get().get( txn ) );
+            return ( cachingTxn != null ? cachingTxn : txn );
+        }
+        
+        private void addWritten( CachingDatastoreService service, Iterable<Key> keys ) {
+            Set<Key> keySet = written.get( service );
+            if ( keySet == null ) {
+                keySet = new HashSet<Key>();
+                written.put( service, keySet );
+            }
+            for ( Key key : keys ) {
+                keySet.add( key );
+            }
+        }
+        
+        /**
+         * Invalidates even if the commit fails, because a failed commit (for
+         * example, a timeout) may have been applied.
+         */
+        public void commit() {
+            try {
+                txn.commit();
+            } finally {
+                active.get().remove( txn );
+                for ( Map.Entry<CachingDatastoreService, Set<Key>> entry : written.entrySet() ) {
+                    entry.getKey().invalidateLocalCache( entry.getValue() );
+                    entry.getKey().invalidateQueries( entry.getValue() );
+                }
+                written.clear();
+            }
+        }
+        
+        public void rollback() {
+            try {
+                txn.rollback();
+            } finally {
+                active.get().remove( txn );
+                written.clear();
+            }
+        }
+        
+        public String getId() {
+            return txn.getId();
+        }
+        
+        public String getApp() {
+            return txn.getApp();
+        }
+        
+        public boolean isActive() {
+            return txn.isActive();
+        }
+        
+        @Override
+        public String toString() {
+            return txn.toString();
+        }
     }
 
     @Override
     public PreparedQuery prepare( Query query ) {
-        // TODO cache query results? implement CachedPreparedQuery?
+        if ( ( query.getKind() != null ) && queryKinds.contains( query.getKind() ) ) {
+            return new CachedPreparedQuery( this, query,
+                                getCachePolicy( query.getKind() ).expiration );
+        }
         return getDatastoreService().prepare( query );
     }
 
     @Override
     public PreparedQuery prepare( Transaction txn, Query query ) {
-        return getDatastoreService().prepare( txn, query );
+        return getDatastoreService().prepare( unwrap( txn ), query );
     }
     
     /***************************************************************************
@@ -430,6 +1022,8 @@ public class CachingDatastoreService extends HttpServlet implements DatastoreSer
                 memcache.put( WATCHDOG_KEY, nextToken, byDeltaSeconds( WATCHDOG_SECONDS * 2 ) );
                 log.info( "watchdog is alive" );
             }
+        } else if ( req.getParameter( "drain" ) != null ) {
+            doDrainTask( res );
         } else {
             doWriteBehindTask( req, res );
         }
@@ -511,6 +1105,106 @@ public class CachingDatastoreService extends HttpServlet implements DatastoreSer
         }
     }
     
+    /**
+     * Writes the entities for up to <code>MAX_BULK_PUT_ENTITIES</code> pending
+     * keys using as few bulk puts as possible, and queues another drain task
+     * if more keys are pending. Keys that fail to be written are added back to
+     * the pending list; if that fails too, the slots are kept and the head is
+     * rewound, and an error is returned so that the task queue retries the task.
+     */
+    @SuppressWarnings("unchecked")
+    private static void doDrainTask( HttpServletResponse res ) throws IOException {
+        MemcacheService memcache = getMemcacheService();
+        memcache.delete( DRAIN_KEY ); // keys added from now on queue a new task
+        Long head = memcache.increment( PENDING_HEAD_KEY, 0, Long.valueOf( 0 ) );
+        Long tail = memcache.increment( PENDING_TAIL_KEY, 0, Long.valueOf( 0 ) );
+        if ( ( head == null ) || ( tail == null ) ) {
+            log.warning( "pending write-behind keys not available" );
+            return;
+        }
+        // if the tail was evicted, it restarted at 0 (see addPending)
+        long from = ( head.longValue() > tail.longValue() ? 0 : head.longValue() );
+        long to = Math.min( tail.longValue(), from + MAX_BULK_PUT_ENTITIES );
+        
+        // advance the head before reading the slots (see addPending)
+        memcache.put( PENDING_HEAD_KEY, Long.valueOf( to ) );
+        List<Object> slotKeys = new ArrayList<Object>();
+        for ( long i = from; i < to; i++ ) {
+            slotKeys.add( PENDING_SLOT_PREFIX + i );
+        }
+        Map<Object, Object> slots = memcache.getAll( slotKeys );
+        if ( ( slots != null ) && !slots.isEmpty() ) {
+            Set<Key> keys = new LinkedHashSet<Key>();
+            for ( Object key : slots.values() ) {
+                keys.add( (Key)key );
+            }
+            Map<Key, Entity> entityMap = (Map)memcache.getAll( (Collection)keys );
+            try {
+                if ( entityMap != null ) {
+                    putAll( entityMap.values() );
+                }
+            } catch ( Exception e ) { // retry
+                log.info( e.toString() );
+                try {
+                    addPending( new ArrayList<Key>( keys ) );
+                } catch ( Exception ex ) {
+                    log.warning( ex.toString() );
+                    memcache.put( PENDING_HEAD_KEY, Long.valueOf( from ) );
+                    res.sendError( HttpServletResponse.SC_SERVICE_UNAVAILABLE );
+                    return;
+                }
+            }
+            memcache.deleteAll( slots.keySet() );
+        }
+        if ( to < tail.longValue() ) {
+            try {
+                queueDrainTask( 0 ); // more keys are pending
+            } catch ( RuntimeException e ) { // retry this task to drain them
+                log.warning( e.toString() );
+                res.sendError( HttpServletResponse.SC_SERVICE_UNAVAILABLE );
+            }
+        }
+    }
+    
+    /**
+     * Writes entities to the datastore in bulk puts, each of no more than the
+     * maximum number of entities or (estimated) bytes.
+     */
+    private static void putAll( Collection<Entity> entities ) {
+        List<Entity> batch = new ArrayList<Entity>();
+        int batchBytes = 0;
+        for ( Entity entity : entities ) {
+            int bytes = estimateSize( entity );
+            if ( !batch.isEmpty() && ( ( batch.size() == MAX_BULK_PUT_ENTITIES ) ||
+                                ( batchBytes + bytes > MAX_BULK_PUT_BYTES ) ) ) {
+                getDatastoreService().put( batch );
+                batch = new ArrayList<Entity>();
+                batchBytes = 0;
+            }
+            batch.add( entity );
+            batchBytes += bytes;
+        }
+        if ( !batch.isEmpty() ) {
+            getDatastoreService().put( batch );
+        }
+    }
+    
+    static int estimateSize( Entity entity ) {
+        int size = 256; // key and entity overhead
+        for ( Map.Entry<String, Object> property : entity.getProperties().entrySet() ) {
+            Object value = property.getValue();
+            size += property.getKey().length() + 16;
+            if ( value instanceof Blob ) {
+                size += ((Blob)value).getBytes().length;
+            } else if ( value instanceof String ) {
+                size += ((String)value).length();
+            } else {
+                size += 8;
+            }
+        }
+        return size;
+    }
+    
     private static Object deserialize( HttpServletRequest req ) throws Exception {
         if ( req.getContentLength() == 0 ) {
             return null;
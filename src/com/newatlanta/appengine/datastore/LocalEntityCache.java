@@ -0,0 +1,244 @@
+/*
+ * Copyright 2009 New Atlanta Communications, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.newatlanta.appengine.datastore;
+
+import static com.google.appengine.api.datastore.KeyFactory.keyToString;
+import static com.google.appengine.api.memcache.MemcacheServiceFactory.getMemcacheService;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+
+/**
+ * An in-instance cache of entities in front of memcache, bounded by the
+ * estimated size of the cached entities.
+ * <p>
+ * Every write of a cached entity (by any instance) increments a stamp for its
+ * key in memcache, and entities are cached along with the stamp read before
+ * the entity was read. Cached entities are trusted for a short time-to-live;
+ * after that, the stamp is read again, and the entity is discarded if the stamp
+ * changed. Entities written by this instance are cached with their new stamps.
+ * <p>
+ * Entities are mutable, so copies are cached and returned.
+ *
+ * @author <a href="mailto:vbonfanti@gmail.com">Vince Bonfanti</a>
+ */
+class LocalEntityCache {
+
+    private static final String STAMP_PREFIX = "LocalEntityCache.stamp:";
+
+    private long maxBytes;
+    private long ttlMillis;
+
+    private Map<Key, CachedEntity> entities = new LinkedHashMap<Key, CachedEntity>( 16, 0.75f, true );
+    private long cachedBytes;
+
+    LocalEntityCache( long maxBytes, long ttlMillis ) {
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+    }
+
+    synchronized void setMaxBytes( long maxBytes ) {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    synchronized void setTtlMillis( long ttlMillis ) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Returns a copy of the cached entity, or <code>null</code> if it's not
+     * cached or has been written since it was cached.
+     */
+    Entity get( Key key ) {
+        CachedEntity cached = getCachedEntity( key );
+        if ( cached == null ) {
+            return null;
+        }
+        if ( cached.isExpired() ) {
+            Long stamp = getStamp( key );
+            if ( !validate( cached, stamp ) ) {
+                return null;
+            }
+        }
+        return copy( cached.entity );
+    }
+
+    /**
+     * Returns copies of the cached entities for the specified keys; keys whose
+     * entities are not cached (or have been written) are not in the map. The
+     * stamps of expired entities are read with a single memcache call.
+     */
+    Map<Key, Entity> getAll( Collection<Key> keys ) {
+        Map<Key, Entity> result = new HashMap<Key, Entity>();
+        List<CachedEntity> expired = new ArrayList<CachedEntity>();
+        for ( Key key : keys ) {
+            CachedEntity cached = getCachedEntity( key );
+            if ( cached != null ) {
+                if ( cached.isExpired() ) {
+                    expired.add( cached );
+                } else {
+                    result.put( key, copy( cached.entity ) );
+                }
+            }
+        }
+        if ( !expired.isEmpty() ) {
+            List<Key> expiredKeys = new ArrayList<Key>( expired.size() );
+            for ( CachedEntity cached : expired ) {
+                expiredKeys.add( cached.entity.getKey() );
+            }
+            Map<Key, Long> stamps = getStamps( expiredKeys );
+            for ( CachedEntity cached : expired ) {
+                if ( validate( cached, stamps.get( cached.entity.getKey() ) ) ) {
+                    result.put( cached.entity.getKey(), copy( cached.entity ) );
+                }
+            }
+        }
+        return result;
+    }
+
+    private synchronized CachedEntity getCachedEntity( Key key ) {
+        return entities.get( key );
+    }
+
+    /**
+     * Returns true if the stamp of the cached entity hasn't changed; if so, the
+     * entity is trusted for another time-to-live, otherwise it's removed.
+     */
+    private synchronized boolean validate( CachedEntity cached, Long stamp ) {
+        if ( ( stamp != null ) && ( stamp.longValue() == cached.stamp ) ) {
+            cached.validated = System.currentTimeMillis();
+            return true;
+        }
+        if ( entities.get( cached.entity.getKey() ) == cached ) {
+            remove( cached.entity.getKey() );
+        }
+        return false;
+    }
+
+    /**
+     * Caches a copy of the entity with the specified stamp, which must have been
+     * read before the entity was read (or returned by {@link #invalidate(Key)}).
+     */
+    synchronized void put( Entity entity, Long stamp ) {
+        remove( entity.getKey() );
+        if ( stamp == null ) {
+            return;
+        }
+        CachedEntity cached = new CachedEntity( copy( entity ), stamp.longValue() );
+        entities.put( entity.getKey(), cached );
+        cachedBytes += cached.size;
+        evict();
+    }
+
+    /**
+     * Removes the cached entity, and increments its stamp so that other instances
+     * discard it; must be invoked after the entity is written or deleted. Returns
+     * the new stamp, or <code>null</code> if memcache is not available.
+     */
+    Long invalidate( Key key ) {
+        synchronized ( this ) {
+            remove( key );
+        }
+        return VersionCounter.increment( stampKey( key ) );
+    }
+
+    /**
+     * Returns the current stamp for the specified key.
+     */
+    Long getStamp( Key key ) {
+        return VersionCounter.get( stampKey( key ) );
+    }
+
+    /**
+     * Returns the current stamps for the specified keys with a single memcache
+     * call; keys that don't have stamps are not in the map.
+     */
+    Map<Key, Long> getStamps( Collection<Key> keys ) {
+        List<Object> stampKeys = new ArrayList<Object>( keys.size() );
+        for ( Key key : keys ) {
+            stampKeys.add( stampKey( key ) );
+        }
+        Map<Object, Object> values = getMemcacheService().getAll( stampKeys );
+        Map<Key, Long> stamps = new HashMap<Key, Long>();
+        if ( values != null ) {
+            for ( Key key : keys ) {
+                Object stamp = values.get( stampKey( key ) );
+                if ( stamp instanceof Number ) {
+                    stamps.put( key, ((Number)stamp).longValue() );
+                }
+            }
+        }
+        return stamps;
+    }
+
+    synchronized void clear() {
+        entities.clear();
+        cachedBytes = 0;
+    }
+
+    private void remove( Key key ) {
+        CachedEntity cached = entities.remove( key );
+        if ( cached != null ) {
+            cachedBytes -= cached.size;
+        }
+    }
+
+    private void evict() {
+        Iterator<CachedEntity> iter = entities.values().iterator();
+        while ( ( cachedBytes > maxBytes ) && iter.hasNext() ) {
+            cachedBytes -= iter.next().size;
+            iter.remove(); // least-recently used first
+        }
+    }
+
+    private static String stampKey( Key key ) {
+        return STAMP_PREFIX + keyToString( key );
+    }
+
+    private static Entity copy( Entity entity ) {
+        Entity copy = new Entity( entity.getKey() );
+        copy.setPropertiesFrom( entity );
+        return copy;
+    }
+
+    private class CachedEntity {
+
+        private final Entity entity;
+        private final long stamp;
+        private final int size;
+        private volatile long validated;
+
+        private CachedEntity( Entity entity, long stamp ) {
+            this.entity = entity;
+            this.stamp = stamp;
+            this.size = CachingDatastoreService.estimateSize( entity );
+            this.validated = System.currentTimeMillis();
+        }
+
+        private boolean isExpired() {
+            return ( System.currentTimeMillis() - validated ) >= ttlMillis;
+        }
+    }
+}
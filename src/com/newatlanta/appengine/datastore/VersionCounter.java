@@ -0,0 +1,57 @@
+/*
+ * Copyright 2009 New Atlanta Communications, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.newatlanta.appengine.datastore;
+
+import static com.google.appengine.api.memcache.MemcacheServiceFactory.getMemcacheService;
+
+/**
+ * Version counters kept in memcache, used to tell whether something cached
+ * (by any instance) was changed since it was cached.
+ * <p>
+ * If a counter is evicted from memcache (or deleted), it's re-initialized to a
+ * value based on the current time in microseconds. That leaves room for one
+ * increment per microsecond before a counter could reach a value it had before
+ * it was evicted, so something cached under a previous version is never
+ * mistaken for current.
+ *
+ * @author <a href="mailto:vbonfanti@gmail.com">Vince Bonfanti</a>
+ */
+public final class VersionCounter {
+
+    private VersionCounter() {
+    }
+
+    /**
+     * Returns the current value of the specified counter, or <code>null</code>
+     * if memcache is not available.
+     */
+    public static Long get( String key ) {
+        // incrementing by 0 gets the current value, or initializes it
+        return getMemcacheService().increment( key, 0, initialValue() );
+    }
+
+    /**
+     * Increments the specified counter. Returns the new value, or
+     * <code>null</code> if memcache is not available.
+     */
+    public static Long increment( String key ) {
+        return getMemcacheService().increment( key, 1, initialValue() );
+    }
+
+    private static Long initialValue() {
+        return Long.valueOf( System.currentTimeMillis() * 1000 );
+    }
+}
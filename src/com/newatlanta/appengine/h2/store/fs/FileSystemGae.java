@@ -18,7 +18,6 @@ package com.newatlanta.appengine.h2.store.fs;
 import static com.newatlanta.appengine.nio.file.attribute.GaeFileAttributes.withBlockSize;
 import static com.newatlanta.repackaged.java.nio.file.AccessMode.WRITE;
 import static com.newatlanta.repackaged.java.nio.file.Files.createDirectories;
-import static com.newatlanta.repackaged.java.nio.file.Files.walkFileTree;
 import static com.newatlanta.repackaged.java.nio.file.Paths.get;
 import static com.newatlanta.repackaged.java.nio.file.StandardOpenOption.APPEND;
 
@@ -30,15 +29,15 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
 
+import org.apache.commons.vfs.Selectors;
 import org.h2.message.Message;
 import org.h2.store.fs.FileObject;
 import org.h2.store.fs.FileSystem;
 
+import com.newatlanta.appengine.vfs.provider.GaeVFS;
 import com.newatlanta.repackaged.java.nio.file.FileAlreadyExistsException;
-import com.newatlanta.repackaged.java.nio.file.FileVisitResult;
 import com.newatlanta.repackaged.java.nio.file.NoSuchFileException;
 import com.newatlanta.repackaged.java.nio.file.Path;
-import com.newatlanta.repackaged.java.nio.file.SimpleFileVisitor;
 import com.newatlanta.repackaged.java.nio.file.attribute.Attributes;
 import com.newatlanta.repackaged.java.nio.file.attribute.BasicFileAttributes;
 
@@ -155,38 +154,16 @@ public class FileSystemGae extends FileSystem {
     }
 
     @Override
-    public void deleteRecursive( String directory, final boolean tryOnly )
+    public void deleteRecursive( String directory, boolean tryOnly )
             throws SQLException {
-        // http://download.java.net/jdk7/docs/api/java/nio/file/FileVisitor.html
-        // TODO this implementation needs to be examined carefully
-        walkFileTree( get( directory ), new SimpleFileVisitor<Path>() {
-            @Override
-            public FileVisitResult visitFile( Path file, BasicFileAttributes attrs ) {
-                try {
-                    file.delete();
-                } catch ( IOException e ) {
-                    if ( !tryOnly ) {
-                        // TODO is this correct?
-                        return FileVisitResult.TERMINATE;
-                    }
-                }
-                return FileVisitResult.CONTINUE;
-            }
-
-            @Override
-            public FileVisitResult postVisitDirectory( Path dir, IOException e ) {
-                if ( e == null ) {
-                    try {
-                        dir.delete();
-                    } catch ( IOException exc ) {
-                        // TODO failed to delete, do error handling here
-                    }
-                } else {
-                    // TODO directory iteration failed
-                }
-                return FileVisitResult.CONTINUE;
+        try {
+            // deletes the directory and its descendants with batched deletes
+            GaeVFS.resolveFile( directory ).delete( Selectors.SELECT_ALL );
+        } catch ( IOException e ) {
+            if ( !tryOnly ) {
+                throw Message.convert( e );
             }
-        } );
+        }
     }
 
     @Override
@@ -30,6 +30,12 @@ import java.nio.channels.NonReadableChannelException;
 import java.nio.channels.NonWritableChannelException;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.commons.vfs.FileSystemException;
@@ -39,6 +45,7 @@ import com.google.appengine.api.datastore.Entity;
 import com.newatlanta.appengine.locks.SleepTimer;
 import com.newatlanta.appengine.vfs.provider.GaeFileContent;
 import com.newatlanta.appengine.vfs.provider.GaeFileObject;
+import com.newatlanta.appengine.vfs.provider.GaeVFS;
 import com.newatlanta.repackaged.java.nio.channels.FileChannel;
 import com.newatlanta.repackaged.java.nio.channels.FileLock;
 import com.newatlanta.repackaged.java.nio.file.OpenOption;
@@ -64,11 +71,24 @@ public class GaeFileChannel extends FileChannel {
     private ByteBuffer buffer; // wraps the current block contents
     private boolean isDirty; // buffer has been modified
     
+    private Map<Long, Entity> readAhead; // prefetched blocks, keyed by index
+    private boolean isReadAhead; // prefetch blocks when reading sequentially
+    private long prevIndex = -1; // index of the previously loaded block
+    private int readAheadWindow; // blocks in the previous read-ahead bulk get
+    
+    private Map<Long, Entity> writeBack; // modified blocks pending bulk put
+    private long savedSize; // content size last written to the datastore
+    
     public GaeFileChannel( GaeFileObject fileObject, Set<? extends OpenOption> options )
             throws IOException {
         this.fileObject = fileObject;
         this.blockSize = fileObject.getBlockSize();
         this.options = options;
+        if ( options.contains( WRITE ) && ( calcWriteBackBlocks() > 1 ) ) {
+            writeBack = new LinkedHashMap<Long, Entity>();
+        }
+        savedSize = doGetSize();
+        isReadAhead = !options.contains( WRITE );
         if ( options.contains( TRUNCATE_EXISTING ) ) {
             truncate( 0 );
         }
@@ -94,6 +114,9 @@ public class GaeFileChannel extends FileChannel {
         duplicate.index = this.index;
         duplicate.block = this.block;
         duplicate.blockSize = this.blockSize;
+        duplicate.writeBack = this.writeBack; // shared, so duplicate writes are flushed
+        duplicate.savedSize = this.savedSize;
+        duplicate.isReadAhead = this.isReadAhead;
         if ( buffer != null ) {
             duplicate.buffer = buffer.duplicate();
         }
@@ -104,11 +127,17 @@ public class GaeFileChannel extends FileChannel {
     public synchronized void force( boolean metaData ) throws IOException {
         checkOpen();
         flush();
+        flushWriteBack();
         if ( metaData ) {
-            fileObject.putMetaData();
+            putMetaData();
         }
     }
     
+    private synchronized void putMetaData() throws IOException {
+        fileObject.putMetaData();
+        savedSize = doGetSize();
+    }
+    
     private synchronized void closeBlock() throws IOException {
         flush();
         block = null;
@@ -127,10 +156,46 @@ public class GaeFileChannel extends FileChannel {
             } else {
                 block.setProperty( CONTENT_BLOB, new Blob( buffer.array() ) );
             }
-            fileObject.putBlock( block );
+            putBlock( block );
             isDirty = false;
         }
     }
+    
+    /**
+     * If write-back is enabled, hold the block until enough modified blocks
+     * have accumulated to write them in a single bulk put; otherwise, write
+     * the block immediately.
+     */
+    private synchronized void putBlock( Entity b ) throws IOException {
+        if ( writeBack == null ) {
+            fileObject.putBlock( b );
+            return;
+        }
+        writeBack.put( index, b );
+        if ( writeBack.size() >= calcWriteBackBlocks() ) {
+            flushWriteBack();
+        }
+    }
+    
+    /**
+     * Writes the modified blocks, plus the metadata, in a single bulk put
+     * (or as few as possible).
+     */
+    private synchronized void flushWriteBack() throws IOException {
+        if ( ( writeBack != null ) && !writeBack.isEmpty() ) {
+            fileObject.putContent( new ArrayList<Entity>( writeBack.values() ) );
+            writeBack.clear();
+            savedSize = doGetSize();
+        }
+    }
+    
+    /**
+     * Leave room for the metadata entity, which is written in the same bulk put.
+     */
+    private int calcWriteBackBlocks() throws FileSystemException {
+        return Math.min( GaeVFS.getWriteBackBlocks(),
+                            fileObject.maxBlocksPerBulkOperation() - 1 );
+    }
 
     @Override
     public FileLock lock( long position, long size, boolean shared ) throws IOException {
@@ -193,7 +258,20 @@ public class GaeFileChannel extends FileChannel {
      * Sets the file length without modifying the contents or position.
      */
     public void setLength( long newLength ) throws IOException {
-        fileObject.updateContentSize( newLength );
+        updateContentSize( newLength );
+    }
+    
+    /**
+     * Extends the content size. The metadata is written immediately only if
+     * write-back is disabled and the file has grown by at least the size update
+     * threshold since the metadata was last written; otherwise, it's written by
+     * the next bulk put of modified blocks, force(true), or close.
+     */
+    private synchronized void updateContentSize( long newSize ) throws IOException {
+        if ( fileObject.setContentSize( newSize, false ) && ( writeBack == null ) &&
+                ( ( newSize - savedSize ) >= ( GaeVFS.getSizeUpdateThreshold() * 1024L ) ) ) {
+            putMetaData();
+        }
     }
 
     @Override
@@ -252,10 +330,85 @@ public class GaeFileChannel extends FileChannel {
         return (int)( i - ( index * blockSize ) );
     }
 
+    /**
+     * Scattering read: the blocks spanned by all of the buffers are fetched with
+     * bulk gets up front, then the buffers are filled in sequence.
+     */
     @Override
-    public long read( ByteBuffer[] dsts, int offset, int length ) throws IOException {
-        // TODO Auto-generated method stub
-        return 0;
+    public synchronized long read( ByteBuffer[] dsts, int offset, int length )
+            throws IOException {
+        checkReadOptions();
+        checkBufferArray( dsts, offset, length );
+        long fileLen = doGetSize();
+        if ( position >= fileLen ) {
+            return -1;
+        }
+        prefetchBlocks( position, Math.min( totalRemaining( dsts, offset, length ),
+                                                fileLen - position ) );
+        long totalBytesRead = 0;
+        for ( int i = offset; ( i < ( offset + length ) ) && ( position < fileLen ); i++ ) {
+            totalBytesRead += read( dsts[ i ] );
+        }
+        discardPrefetchedBlocks();
+        return totalBytesRead;
+    }
+    
+    private static void checkBufferArray( ByteBuffer[] bufs, int offset, int length ) {
+        if ( ( offset < 0 ) || ( offset > bufs.length ) ||
+                ( length < 0 ) || ( length > ( bufs.length - offset ) ) ) {
+            throw new IndexOutOfBoundsException();
+        }
+    }
+    
+    private static long totalRemaining( ByteBuffer[] bufs, int offset, int length ) {
+        long r = 0;
+        for ( int i = offset; i < ( offset + length ); i++ ) {
+            r += bufs[ i ].remaining();
+        }
+        return r;
+    }
+    
+    /**
+     * Fetches the blocks spanning <code>len</code> bytes starting at <code>pos</code>
+     * with bulk gets and holds them in the read-ahead window, so that scattering
+     * reads and gathering writes don't do a datastore get per block. The current
+     * block is not fetched again, and single-block ranges are left to
+     * {@link #getBlock(long)}.
+     */
+    private synchronized void prefetchBlocks( long pos, long len ) throws IOException {
+        if ( len <= 0 ) {
+            return;
+        }
+        long first = calcBlockIndex( pos );
+        long last = calcBlockIndex( pos + len - 1 );
+        if ( ( block != null ) && ( first == index ) ) {
+            first++;
+        }
+        if ( first >= last ) {
+            return;
+        }
+        if ( readAhead == null ) {
+            readAhead = new HashMap<Long, Entity>();
+        } else {
+            readAhead.clear();
+        }
+        int max = fileObject.maxBlocksPerBulkOperation();
+        for ( long i = first; i <= last; i += max ) {
+            List<Entity> blocks = fileObject.getBlocks( i, (int)Math.min( max, last - i + 1 ) );
+            for ( int j = 0; j < blocks.size(); j++ ) {
+                readAhead.put( i + j, blocks.get( j ) );
+            }
+        }
+    }
+    
+    /**
+     * Prefetched blocks that weren't used can only be kept by channels that
+     * never modify blocks; otherwise they may become stale.
+     */
+    private void discardPrefetchedBlocks() {
+        if ( !isReadAhead && ( readAhead != null ) ) {
+            readAhead.clear();
+        }
     }
 
     @Override
@@ -329,18 +482,172 @@ public class GaeFileChannel extends FileChannel {
         return fileObject.doGetContentSize();
     }
 
+    /**
+     * If <code>src</code> is a <code>GaeFileChannel</code>, whole blocks are
+     * copied directly in bulk (see {@link #transferTo(long, long, WritableByteChannel)});
+     * any remaining bytes are read from <code>src</code> one block at a time.
+     * <p>
+     * This channel's lock is never held while invoking <code>src</code>, so that
+     * two channels transferring to each other can't deadlock.
+     */
     @Override
-    public long transferFrom( ReadableByteChannel src, long position, long count )
-            throws IOException {
-        // TODO Auto-generated method stub
-        return 0;
+    public long transferFrom( ReadableByteChannel src, long position,
+            long count ) throws IOException {
+        if ( ( position < 0 ) || ( count < 0 ) ) {
+            throw new IllegalArgumentException();
+        }
+        checkOpen();
+        if ( !options.contains( WRITE ) ) {
+            throw new NonWritableChannelException();
+        }
+        if ( position > doGetSize() ) {
+            return 0;
+        }
+        long transferred = 0;
+        if ( src instanceof GaeFileChannel ) {
+            GaeFileChannel srcChannel = (GaeFileChannel)src;
+            srcChannel.checkReadOptions();
+            srcChannel.flushAll(); // make the modified blocks visible to the copy
+            long srcPos = srcChannel.position();
+            transferred = transferBlocks( srcChannel, srcPos, position, count );
+            if ( transferred > 0 ) {
+                srcChannel.position( srcPos + transferred );
+            }
+        }
+        if ( transferred < count ) {
+            GaeFileChannel dest;
+            synchronized ( this ) {
+                // the duplicate must not share the current block, which would
+                // otherwise overwrite the transferred bytes when it's written
+                closeBlock();
+                dest = duplicate().position( position + transferred );
+            }
+            ByteBuffer buf = ByteBuffer.allocate( (int)Math.min( blockSize, count - transferred ) );
+            try {
+                while ( transferred < count ) {
+                    buf.clear().limit( (int)Math.min( buf.capacity(), count - transferred ) );
+                    int n = src.read( buf );
+                    if ( n <= 0 ) {
+                        break;
+                    }
+                    synchronized ( this ) { // dest shares this channel's write-back blocks
+                        dest.write( (ByteBuffer)buf.flip() );
+                    }
+                    transferred += n;
+                }
+            } finally {
+                synchronized ( this ) {
+                    dest.closeBlock();
+                }
+            }
+        }
+        return transferred;
+    }
+    
+    /**
+     * Writes the current block and any write-back blocks.
+     */
+    private synchronized void flushAll() throws IOException {
+        flush();
+        flushWriteBack();
     }
 
+    /**
+     * If <code>target</code> is a <code>GaeFileChannel</code> with the same block
+     * size, and both positions are block-aligned, then whole blocks are copied
+     * directly in bulk without buffering their contents. Otherwise, and for any
+     * remaining bytes, the contents are written to <code>target</code> one block
+     * at a time, with read-ahead.
+     * <p>
+     * This channel's lock is never held while invoking <code>target</code>, so
+     * that two channels transferring to each other can't deadlock.
+     */
     @Override
-    public long transferTo( long position, long count, WritableByteChannel target )
-            throws IOException {
-        // TODO Auto-generated method stub
-        return 0;
+    public long transferTo( long position, long count,
+            WritableByteChannel target ) throws IOException {
+        if ( ( position < 0 ) || ( count < 0 ) ) {
+            throw new IllegalArgumentException();
+        }
+        checkReadOptions();
+        if ( position >= doGetSize() ) {
+            return 0;
+        }
+        flushAll(); // make the modified blocks visible to the copy
+        long transferred = 0;
+        if ( target instanceof GaeFileChannel ) {
+            GaeFileChannel targetChannel = (GaeFileChannel)target;
+            targetChannel.checkWriteOptions(); // moves to EOF if APPEND
+            long targetPos = targetChannel.position();
+            transferred = targetChannel.transferBlocks( this, position, targetPos, count );
+            targetChannel.position( targetPos + transferred );
+        }
+        if ( transferred < count ) {
+            GaeFileChannel src;
+            synchronized ( this ) {
+                src = duplicate().position( position + transferred );
+            }
+            src.isReadAhead = true; // src is only used for reading
+            ByteBuffer buf = ByteBuffer.allocate( (int)Math.min( blockSize, count - transferred ) );
+            while ( transferred < count ) {
+                buf.clear().limit( (int)Math.min( buf.capacity(), count - transferred ) );
+                int n = src.read( buf );
+                if ( n <= 0 ) {
+                    break;
+                }
+                buf.flip();
+                while ( buf.hasRemaining() ) {
+                    if ( target.write( buf ) == 0 ) { // non-blocking target is full
+                        return transferred + ( n - buf.remaining() );
+                    }
+                }
+                transferred += n;
+            }
+        }
+        return transferred;
+    }
+    
+    /**
+     * Copies whole blocks from <code>src</code> into this channel's file; returns
+     * the number of bytes copied, which is 0 if the files have different block
+     * sizes or either position is not block-aligned. The last (partial) block
+     * is copied only if it's the source EOF block and it won't overwrite any
+     * existing bytes of this file. Neither channel's position is modified.
+     * <p>
+     * The caller must write the modified blocks of <code>src</code> first; the
+     * lock of <code>src</code> is not acquired here.
+     */
+    private synchronized long transferBlocks( GaeFileChannel src, long srcPos,
+            long destPos, long count ) throws IOException {
+        checkOpen();
+        if ( !options.contains( WRITE ) ) {
+            throw new NonWritableChannelException();
+        }
+        if ( ( src.fileObject == fileObject ) || ( src.blockSize != blockSize ) ||
+                ( ( srcPos % blockSize ) != 0 ) || ( ( destPos % blockSize ) != 0 ) ) {
+            return 0;
+        }
+        long srcSize = src.doGetSize();
+        if ( srcPos >= srcSize ) {
+            return 0;
+        }
+        long bytes = Math.min( count, srcSize - srcPos );
+        long numBlocks = bytes / blockSize;
+        if ( ( bytes % blockSize ) != 0 ) {
+            if ( ( ( srcPos + bytes ) == srcSize ) && ( ( destPos + bytes ) >= doGetSize() ) ) {
+                numBlocks++;
+            } else {
+                bytes = numBlocks * blockSize;
+            }
+        }
+        if ( numBlocks == 0 ) {
+            return 0;
+        }
+        closeBlock(); // don't overwrite the copied blocks with buffered ones
+        flushWriteBack();
+        src.fileObject.copyBlocks( calcBlockIndex( srcPos ), fileObject,
+                                    calcBlockIndex( destPos ), numBlocks );
+        updateContentSize( destPos + bytes );
+        return bytes;
     }
 
     @Override
@@ -356,13 +663,30 @@ public class GaeFileChannel extends FileChannel {
             positionInternal( size, true );
         }
         if ( size < doGetSize() ) {
+            discardWriteBack( calcBlockIndex( size - 1 ) + 1 );
             fileObject.deleteBlocks( calcBlockIndex( size - 1 ) + 1 );
             duplicate().position( size ).truncateBuffer();
             fileObject.updateContentSize( size, true );
+            savedSize = size;
         }
         return this;
     }
     
+    /**
+     * Discard modified blocks from the specified index (inclusive) so they don't
+     * get written after being truncated.
+     */
+    private synchronized void discardWriteBack( long from ) {
+        if ( writeBack != null ) {
+            Iterator<Long> indexes = writeBack.keySet().iterator();
+            while ( indexes.hasNext() ) {
+                if ( indexes.next() >= from ) {
+                    indexes.remove();
+                }
+            }
+        }
+    }
+    
     private void truncateBuffer() throws IOException {
         initBuffer( 0 );
         // zero-out buffer from position to buffer.capacity()
@@ -371,26 +695,40 @@ public class GaeFileChannel extends FileChannel {
         flush();
     }
 
+    /**
+     * Gathering write: the existing blocks spanned by all of the buffers are
+     * fetched with bulk gets up front, then the buffers are drained in sequence.
+     */
     @Override
     public synchronized long write( ByteBuffer[] srcs, int offset, int length )
             throws IOException {
         checkWriteOptions();
-        // TODO this method has not been tested
-        if ( ( offset < 0 ) || ( offset > srcs.length ) ||
-                ( length < 0 ) || ( length > ( srcs.length - offset ) ) ) {
-            throw new IllegalArgumentException();
-        }
-        int bytesWritten = 0;
+        checkBufferArray( srcs, offset, length );
+        prefetchBlocks( position, Math.min( totalRemaining( srcs, offset, length ),
+                                                doGetSize() - position ) );
+        long bytesWritten = 0;
         for ( int i = offset; i < ( offset + length ); i++ ) {
             bytesWritten += write( srcs[ i ] );
         }
+        discardPrefetchedBlocks();
         return bytesWritten;
     }
 
+    /**
+     * The current block is written (or held for write-back) before the duplicate
+     * is created, and the duplicate's last block is written before returning, so
+     * that neither channel overwrites the other's modifications with a stale
+     * buffer.
+     */
     @Override
-    public int write( ByteBuffer src, long writePos ) throws IOException {
-        // TODO this method has not been tested
-        return this.duplicate().position( writePos ).write( src );
+    public synchronized int write( ByteBuffer src, long writePos ) throws IOException {
+        closeBlock();
+        GaeFileChannel dest = this.duplicate().position( writePos );
+        try {
+            return dest.write( src );
+        } finally {
+            dest.closeBlock();
+        }
     }
     
     @Override
@@ -422,17 +760,17 @@ public class GaeFileChannel extends FileChannel {
         }
         buffer.put( src );
         isDirty = true;
-        fileObject.updateContentSize( position + n );
+        updateContentSize( position + n );
         positionInternal( position + n, false );
         return n;
     }
     
-    private synchronized void initBuffer( int len ) throws FileSystemException {
+    private synchronized void initBuffer( int len ) throws IOException {
         if ( buffer != null ) {
             return;
         }
         if ( block == null ) {
-            block = fileObject.getBlock( index );
+            block = getBlock( index );
         }
         Blob contentBlob = (Blob)block.getProperty( CONTENT_BLOB );
         buffer = ( contentBlob != null ? ByteBuffer.wrap( contentBlob.getBytes() )
@@ -441,6 +779,60 @@ public class GaeFileChannel extends FileChannel {
         isDirty = false;
     }
     
+    /**
+     * Gets the block at the specified index, from the read-ahead window if it
+     * was prefetched or is pending write-back. If reading sequentially, gets the following blocks in the
+     * same bulk get and holds them in the read-ahead window.
+     */
+    private synchronized Entity getBlock( long i ) throws IOException {
+        Entity b = ( writeBack != null ? writeBack.get( i ) : null );
+        if ( ( b == null ) && ( readAhead != null ) ) {
+            b = readAhead.remove( i );
+        }
+        if ( b == null ) {
+            int n = calcReadAheadBlocks( i );
+            if ( n > 1 ) {
+                List<Entity> blocks = fileObject.getBlocks( i, n );
+                if ( readAhead == null ) {
+                    readAhead = new HashMap<Long, Entity>();
+                } else {
+                    readAhead.clear(); // bound the window to one bulk get
+                }
+                for ( int j = 1; j < blocks.size(); j++ ) {
+                    readAhead.put( i + j, blocks.get( j ) );
+                }
+                b = blocks.get( 0 );
+            } else {
+                b = fileObject.getBlock( i );
+            }
+        }
+        prevIndex = i;
+        return b;
+    }
+    
+    /**
+     * Read-ahead is only done for read-only channels (so prefetched blocks can't
+     * be modified by this channel) and channels used internally only for reading,
+     * and only when the block being loaded immediately follows the previous one.
+     * Never reads past the EOF block.
+     * <p>
+     * The read-ahead window starts at one block and doubles with each bulk get,
+     * up to the configured maximum, so that the first block of a sequential read
+     * (for example, of a file being served to a client) isn't delayed by
+     * prefetching the blocks that follow it.
+     */
+    private int calcReadAheadBlocks( long i ) throws IOException {
+        if ( !isReadAhead || ( i != ( prevIndex + 1 ) ) ) {
+            readAheadWindow = 0;
+            return 1;
+        }
+        long eofIndex = calcBlockIndex( doGetSize() - 1 );
+        long n = Math.min( GaeVFS.getReadAheadBlocks(),
+                                fileObject.maxBlocksPerBulkOperation() );
+        readAheadWindow = (int)Math.min( n, Math.max( 1, readAheadWindow * 2 ) );
+        return (int)Math.max( 1, Math.min( readAheadWindow, eofIndex - i + 1 ) );
+    }
+    
     /**
      * The preferred minimum buffer size is one-fourth the block size, but will be:
      *      - equal to the block size, if the block size is less than 8K
@@ -503,6 +895,12 @@ public class GaeFileChannel extends FileChannel {
     @Override
     protected void implCloseChannel() throws IOException {
         closeBlock();
+        flushWriteBack();
+        writeBack = null;
+        if ( options.contains( WRITE ) && ( doGetSize() != savedSize ) ) {
+            putMetaData(); // write deferred content size
+        }
+        readAhead = null;
         position = 0;
         index = 0;
         if ( options.contains( WRITE ) ) {
@@ -16,77 +16,236 @@
 package com.newatlanta.appengine.nio.file;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.ConcurrentModificationException;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 import org.apache.commons.vfs.FileObject;
 
+import com.newatlanta.appengine.vfs.provider.GaeFileObject;
 import com.newatlanta.repackaged.java.nio.file.ClosedDirectoryStreamException;
 import com.newatlanta.repackaged.java.nio.file.DirectoryStream;
 import com.newatlanta.repackaged.java.nio.file.FileSystem;
 import com.newatlanta.repackaged.java.nio.file.Path;
+import com.newatlanta.repackaged.java.nio.file.attribute.BasicFileAttributeView;
+import com.newatlanta.repackaged.java.nio.file.attribute.BasicFileAttributes;
 
+/**
+ * Iterates the children of a folder. For GaeVFS folders, the children are read
+ * from the child index a page at a time as the iterator advances, and the
+ * metadata of each page is read with a single bulk get, so that memory use is
+ * bounded and the first entry is returned quickly regardless of the number of
+ * children. Local children (see the combined local option) are returned first.
+ * <p>
+ * If a filter is specified, it's applied to each page of GaeVFS children before
+ * their metadata is read, and only the metadata of accepted children is read.
+ * Filters that only examine the names of entries (such as glob filters) never
+ * cause the metadata of rejected children to be read.
+ * <p>
+ * Use {@link #entries()} instead of {@link #iterator()} to get the basic
+ * attributes of each child together with its path, without any additional
+ * datastore access per child.
+ */
 public class GaeDirectoryStream implements DirectoryStream<Path> {
     
-    private static final int CLOSED = Integer.MIN_VALUE;
+    private static final int PAGE_SIZE = 100;
 
     private FileSystem fileSystem;
-    private FileObject[] children;
-    private int index = CLOSED;
+    private GaeFileObject dir; // null if all children are known up-front
+    private FileObject[] children; // local children, or all children if dir is null
+    private Filter<? super Path> filter; // null to accept all children
+    private boolean isOpen = true;
+    private boolean hasIterator;
     
     public GaeDirectoryStream( FileSystem fileSystem, FileObject[] children ) {
+        this( fileSystem, children, null );
+    }
+    
+    public GaeDirectoryStream( FileSystem fileSystem, FileObject[] children,
+                                    Filter<? super Path> filter ) {
         this.fileSystem = fileSystem;
         this.children = children;
+        this.filter = filter;
+    }
+    
+    public GaeDirectoryStream( FileSystem fileSystem, GaeFileObject dir )
+            throws IOException {
+        this( fileSystem, dir, null );
+    }
+    
+    public GaeDirectoryStream( FileSystem fileSystem, GaeFileObject dir,
+                                    Filter<? super Path> filter ) throws IOException {
+        this( fileSystem, dir.getLocalChildren(), filter );
+        this.dir = dir;
     }
 
     public synchronized Iterator<Path> iterator() {
-        if ( ( index != CLOSED ) || ( children == null ) ) {
+        if ( !isOpen || hasIterator ) {
             throw new IllegalStateException();
         }
-        index = -1;
+        hasIterator = true;
         return new GaeDirectoryStreamIterator();
     }
 
-    public void close() throws IOException {
-        index = CLOSED;
+    /**
+     * Returns an iterator over the children of the directory and their basic
+     * attributes. Like {@link #iterator()}, may only be invoked once per stream,
+     * and not if {@link #iterator()} has been invoked.
+     */
+    public Iterator<Entry> entries() {
+        final Iterator<Path> pathIter = iterator();
+        return new Iterator<Entry>() {
+            public boolean hasNext() {
+                return pathIter.hasNext();
+            }
+            public Entry next() {
+                Path path = pathIter.next();
+                try {
+                    return new Entry( path, path.getFileAttributeView(
+                                BasicFileAttributeView.class ).readAttributes() );
+                } catch ( IOException e ) {
+                    throw new ConcurrentModificationException( e.getMessage() );
+                }
+            }
+            public void remove() {
+                pathIter.remove();
+            }
+        };
+    }
+    
+    /**
+     * A directory entry returned by {@link GaeDirectoryStream#entries()}.
+     */
+    public static class Entry {
+        
+        private Path path;
+        private BasicFileAttributes attrs;
+        
+        private Entry( Path path, BasicFileAttributes attrs ) {
+            this.path = path;
+            this.attrs = attrs;
+        }
+        
+        public Path getPath() {
+            return path;
+        }
+        
+        public BasicFileAttributes getAttributes() {
+            return attrs;
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        isOpen = false;
         fileSystem = null;
+        dir = null;
         children = null;
+        filter = null;
     }
     
     private class GaeDirectoryStreamIterator implements Iterator<Path> {
+        
+        private FileObject[] page; // null until the local children are filtered
+        private int index = -1;
+        private boolean isLastPage = ( dir == null );
+        private String lastChildPath; // of the previous page of GaeVFS children
+        private FileObject current;
 
         public boolean hasNext() {
             checkOpen();
-            return ( ( index + 1 ) < children.length );
+            if ( page == null ) {
+                page = acceptChildren( children );
+            }
+            while ( ( index + 1 ) >= page.length ) {
+                if ( isLastPage ) {
+                    return false;
+                }
+                nextPage();
+            }
+            return true;
         }
 
         public Path next() {
-            checkOpen();
-            if ( ( ++index ) >= children.length ) {
+            if ( !hasNext() ) {
                 throw new NoSuchElementException();
             }
+            current = page[ ++index ];
             // TODO: "The Path objects are obtained as if by resolving the name
             // of the directory entry against this path." Not sure exactly what
             // this means.
-            return new GaePath( fileSystem, children[ index ] );
+            return new GaePath( fileSystem, current );
         }
 
         public void remove() {
             checkOpen();
-            if ( ( index < 0 ) || ( children[ index ] == null ) ) {
+            if ( current == null ) {
                 throw new IllegalStateException();
             }
             try {
-                children[ index ].delete();
+                current.delete();
+            } catch ( IOException e ) {
+                throw new ConcurrentModificationException( e.getMessage() );
+            }
+            current = null;
+        }
+        
+        private void nextPage() {
+            try {
+                List<String> childPaths = dir.getChildPaths( lastChildPath, PAGE_SIZE );
+                isLastPage = ( childPaths.size() < PAGE_SIZE );
+                if ( !childPaths.isEmpty() ) {
+                    lastChildPath = childPaths.get( childPaths.size() - 1 );
+                }
+                if ( filter != null ) {
+                    childPaths = acceptChildPaths( childPaths );
+                }
+                List<FileObject> resolved = dir.resolveChildren( childPaths );
+                page = resolved.toArray( new FileObject[ resolved.size() ] );
+                index = -1;
+            } catch ( IOException e ) {
+                throw new ConcurrentModificationException( e.getMessage() );
+            }
+        }
+        
+        private FileObject[] acceptChildren( FileObject[] candidates ) {
+            if ( filter == null ) {
+                return candidates;
+            }
+            List<FileObject> accepted = new ArrayList<FileObject>( candidates.length );
+            for ( FileObject candidate : candidates ) {
+                if ( accept( new GaePath( fileSystem, candidate ) ) ) {
+                    accepted.add( candidate );
+                }
+            }
+            return accepted.toArray( new FileObject[ accepted.size() ] );
+        }
+        
+        /**
+         * Filters child paths before their metadata is read; the paths passed
+         * to the filter aren't resolved unless the filter accesses the files.
+         */
+        private List<String> acceptChildPaths( List<String> childPaths ) {
+            List<String> accepted = new ArrayList<String>( childPaths.size() );
+            for ( String childPath : childPaths ) {
+                if ( accept( GaePath.createUnresolved( fileSystem, childPath ) ) ) {
+                    accepted.add( childPath );
+                }
+            }
+            return accepted;
+        }
+        
+        private boolean accept( Path entry ) {
+            try {
+                return filter.accept( entry );
             } catch ( IOException e ) {
                 throw new ConcurrentModificationException( e.getMessage() );
             }
-            children[ index ] = null;
         }
         
         private void checkOpen() {
-            if ( ( index == CLOSED ) || ( children == null ) ) {
+            if ( !isOpen ) {
                 throw new ClosedDirectoryStreamException();
             }
         }
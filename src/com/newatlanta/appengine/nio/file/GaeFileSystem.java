@@ -56,8 +56,7 @@ public class GaeFileSystem extends FileSystem {
 
     @Override
     public PathMatcher getPathMatcher( String syntaxAndPattern ) {
-        // TODO Auto-generated method stub
-        return null;
+        return new GaePathMatcher( syntaxAndPattern );
     }
 
     @Override
@@ -91,41 +91,61 @@ import com.newatlanta.repackaged.java.nio.file.attribute.FileAttributeView;
 public class GaePath extends Path {
     
     private FileSystem fileSystem;
-    private FileObject fileObject;
+    private FileObject fileObject; // access via getFileObject()
     private String path;
     private Lock lock; // access via getLock()
 
     public GaePath( FileSystem fileSystem, String path ) {
-        this.fileSystem = fileSystem;
-        this.path = path;
-        try {
-            fileObject = GaeVFS.resolveFile( path );
-        } catch ( FileSystemException e ) {
-            throw new InvalidPathException( path, e.toString() );
-        }
+        this( fileSystem, path, null );
+        getFileObject();
     }
     
     GaePath( FileSystem fileSystem, FileObject fileObject ) {
+        this( fileSystem, fileObject.getName().getPath(), fileObject );
+    }
+    
+    private GaePath( FileSystem fileSystem, String path, FileObject fileObject ) {
         this.fileSystem = fileSystem;
+        this.path = path;
         this.fileObject = fileObject;
-        path = fileObject.getName().getPath();
+    }
+    
+    /**
+     * Creates a path that isn't resolved until it's accessed; resolving a path
+     * reads the metadata of the file. Operations that only examine the path
+     * string, such as {@link #toString()} and {@link #equals(Object)}, don't
+     * resolve it.
+     */
+    static GaePath createUnresolved( FileSystem fileSystem, String path ) {
+        return new GaePath( fileSystem, path, null );
+    }
+    
+    synchronized FileObject getFileObject() {
+        if ( fileObject == null ) {
+            try {
+                fileObject = GaeVFS.resolveFile( path );
+            } catch ( FileSystemException e ) {
+                throw new InvalidPathException( path, e.toString() );
+            }
+        }
+        return fileObject;
     }
     
     private synchronized Lock getLock() {
         if ( lock == null ) {
-            lock = new ExclusiveLock( fileObject.getName().getPath() + ".GaePath.lock" );
+            lock = new ExclusiveLock( getFileObject().getName().getPath() + ".GaePath.lock" );
         }
         return lock;
     }
 
     @Override
     public void checkAccess( AccessMode ... modes ) throws IOException {
-        if ( !fileObject.exists() ) {
+        if ( !getFileObject().exists() ) {
             throw new NoSuchFileException( toString() );
         }
         for ( AccessMode mode : modes ) {
-            if ( ( ( mode == AccessMode.READ ) && !fileObject.isReadable() ) ||
-                 ( ( mode == AccessMode.WRITE ) && !fileObject.isWriteable() ) ||
+            if ( ( ( mode == AccessMode.READ ) && !getFileObject().isReadable() ) ||
+                 ( ( mode == AccessMode.WRITE ) && !getFileObject().isWriteable() ) ||
                    ( mode == AccessMode.EXECUTE ) ) {
                 throw new AccessDeniedException( toString(), null, mode.toString() );
             }
@@ -135,7 +155,7 @@ public class GaePath extends Path {
     @Override
     public boolean exists() {
         try {
-            return fileObject.exists();
+            return getFileObject().exists();
         } catch ( IOException e ) {
             return false;
         }
@@ -144,7 +164,7 @@ public class GaePath extends Path {
     @Override
     public boolean notExists() {
         try {
-            return !fileObject.exists();
+            return !getFileObject().exists();
         } catch ( IOException e ) {
             return false; // unknown
         }
@@ -177,8 +197,8 @@ public class GaePath extends Path {
         if ( ( this == other ) || this.equals( other ) ) {
             return true;
         }
-        return fileObject.getName().getPath().equals(
-                                ((GaePath)other).fileObject.getName().getPath() );
+        return getFileObject().getName().getPath().equals(
+                                ((GaePath)other).getFileObject().getName().getPath() );
     }
 
     @Override
@@ -203,7 +223,7 @@ public class GaePath extends Path {
 
     private Path createDir( FileAttribute<?> ... attrs ) throws IOException {
         if ( notExists() ) {
-            fileObject.createFolder();
+            getFileObject().createFolder();
             return this;
         } else {
             throw new FileAlreadyExistsException( toString(), null, null );
@@ -214,7 +234,7 @@ public class GaePath extends Path {
     public Path createFile( FileAttribute<?> ... attrs ) throws IOException {
         for ( FileAttribute<?> attr : attrs ) {
             if ( attr.name().equals( GaeFileAttributes.BLOCK_SIZE ) ) {
-                GaeVFS.setBlockSize( fileObject, (Integer)attr.value() );
+                GaeVFS.setBlockSize( getFileObject(), (Integer)attr.value() );
             } else {
                 throw new UnsupportedOperationException( attr.name() );
             }
@@ -224,7 +244,7 @@ public class GaePath extends Path {
         try {
             parent.checkAccess( AccessMode.WRITE );
             if ( notExists() ) {
-                fileObject.createFile();
+                getFileObject().createFile();
                 return this;
             } else {
                 throw new FileAlreadyExistsException( toString(), null, null );
@@ -248,19 +268,19 @@ public class GaePath extends Path {
     @Override
     public void delete() throws IOException {
         checkAccess( AccessMode.WRITE );
-        if ( fileObject.getType().hasChildren() ) { // directory
+        if ( getFileObject().getType().hasChildren() ) { // directory
             getLock().lock(); // prevent rename or create children
             try {
-                if ( fileObject.getChildren().length > 0 ) { // not empty
+                if ( getFileObject().getChildren().length > 0 ) { // not empty
                     throw new DirectoryNotEmptyException( toString() );
                 }
-                fileObject.delete();
+                getFileObject().delete();
             } finally {
                 lock.unlock();
             }
         } else { // file
-            fileObject.close();
-            fileObject.delete();
+            getFileObject().close();
+            getFileObject().delete();
         }
     }
 
@@ -284,7 +304,14 @@ public class GaePath extends Path {
     @Override
     public Path getName() {
         // TODO: THIS IS NOT RIGHT--THE ABSOLUTE PATH IS INCORRECT
-        return new GaePath( fileSystem, fileObject.getName().getBaseName() );
+        return createUnresolved( fileSystem, getBaseName() );
+    }
+
+    private synchronized String getBaseName() {
+        if ( fileObject != null ) {
+            return fileObject.getName().getBaseName();
+        }
+        return path.substring( path.lastIndexOf( '/' ) + 1 );
     }
 
     private static final String PATH_DELIMS = "/\\"; // include Windows for development
@@ -335,20 +362,20 @@ public class GaePath extends Path {
     @Override
     public GaePath getParent() {
         try {
-            FileObject parentObject = fileObject.getParent();
+            FileObject parentObject = getFileObject().getParent();
             if ( parentObject == null ) {
                 return null;
             }
             return new GaePath( fileSystem, parentObject );
         } catch ( FileSystemException e ) {
-            throw new InvalidPathException( fileObject.getName().getParent().getPath(),
+            throw new InvalidPathException( getFileObject().getName().getParent().getPath(),
                                                 e.toString() );
         }
     }
 
     @Override
     public Path getRoot() {
-        return new GaePath( fileSystem, fileObject.getName().getRootURI() );
+        return new GaePath( fileSystem, getFileObject().getName().getRootURI() );
     }
 
     @Override
@@ -371,14 +398,21 @@ public class GaePath extends Path {
         if ( isSameFile( target, optionSet.contains( REPLACE_EXISTING ) ) ) {
             return target;
         }
-        if ( fileObject.getType().hasChildren() ) {
+        if ( getFileObject().getType().hasChildren() ) {
             target.deleteIfExists(); // fails for non-empty directory
             target.createDirectory();
         } else {
-            ((GaePath)target).fileObject.copyFrom( fileObject, Selectors.SELECT_SELF );
+            FileObject targetObject = ((GaePath)target).getFileObject();
+            if ( ( getFileObject() instanceof GaeFileObject ) &&
+                    ( targetObject instanceof GaeFileObject ) ) {
+                // copy blocks within the datastore
+                ((GaeFileObject)getFileObject()).copyContentTo( (GaeFileObject)targetObject );
+            } else {
+                targetObject.copyFrom( getFileObject(), Selectors.SELECT_SELF );
+            }
             if ( optionSet.contains( COPY_ATTRIBUTES ) ) {
-                ((GaePath)target).fileObject.getContent().setLastModifiedTime( 
-                                    fileObject.getContent().getLastModifiedTime() );
+                ((GaePath)target).getFileObject().getContent().setLastModifiedTime( 
+                                    getFileObject().getContent().getLastModifiedTime() );
             }
         }
         return target;
@@ -394,20 +428,20 @@ public class GaePath extends Path {
         if ( isSameFile( target, optionSet.contains( REPLACE_EXISTING ) ) ) {
             return target;
         }
-        if ( fileObject.getType().hasChildren() ) {
-            if ( fileObject.getChildren().length > 0 ) {
+        if ( getFileObject().getType().hasChildren() ) {
+            if ( getFileObject().getChildren().length > 0 ) {
                 // moving a non-empty directory requires moving the children,
                 // so throw an exception per the javadocs
                 throw new DirectoryNotEmptyException( path );
             }
             getLock().lock(); // prevent creation of children while moving
             try {
-                fileObject.moveTo( ((GaePath)target).fileObject );
+                getFileObject().moveTo( ((GaePath)target).getFileObject() );
             } finally {
                 lock.unlock();
             }
         } else {
-            fileObject.moveTo( ((GaePath)target).fileObject );
+            getFileObject().moveTo( ((GaePath)target).getFileObject() );
         }
         return target;
     }
@@ -447,29 +481,51 @@ public class GaePath extends Path {
     @Override
     public DirectoryStream<Path> newDirectoryStream() throws IOException {
         checkAccess( AccessMode.READ );
-        if ( !fileObject.getType().hasChildren() ) {
+        if ( !getFileObject().getType().hasChildren() ) {
             throw new NotDirectoryException( toString() );
         }
-        return new GaeDirectoryStream( fileSystem, fileObject.getChildren() );
+        if ( getFileObject() instanceof GaeFileObject ) {
+            return new GaeDirectoryStream( fileSystem, (GaeFileObject)getFileObject() );
+        }
+        return new GaeDirectoryStream( fileSystem, getFileObject().getChildren() );
     }
 
     @Override
     public DirectoryStream<Path> newDirectoryStream( String glob ) throws IOException {
-        // TODO Auto-generated method stub
-        return null;
+        if ( glob.equals( "*" ) ) {
+            return newDirectoryStream();
+        }
+        // match the file name only, without resolving it as a path
+        final GaePathMatcher matcher = new GaePathMatcher( "glob:" + glob );
+        return newDirectoryStream( new Filter<Path>() {
+            public boolean accept( Path entry ) {
+                String entryPath = entry.toString();
+                return matcher.matches( entryPath.substring(
+                                            entryPath.lastIndexOf( '/' ) + 1 ) );
+            }
+        } );
     }
 
     @Override
     public DirectoryStream<Path> newDirectoryStream( Filter<? super Path> filter )
             throws IOException {
-        // TODO Auto-generated method stub
-        return null;
+        if ( filter == null ) {
+            throw new NullPointerException();
+        }
+        checkAccess( AccessMode.READ );
+        if ( !getFileObject().getType().hasChildren() ) {
+            throw new NotDirectoryException( toString() );
+        }
+        if ( getFileObject() instanceof GaeFileObject ) {
+            return new GaeDirectoryStream( fileSystem, (GaeFileObject)getFileObject(), filter );
+        }
+        return new GaeDirectoryStream( fileSystem, getFileObject().getChildren(), filter );
     }
 
     @Override
     public FileChannel newByteChannel( Set<? extends OpenOption> options,
                               FileAttribute<?> ... attrs ) throws IOException {
-        if ( !( fileObject instanceof GaeFileObject ) ) {
+        if ( !( getFileObject() instanceof GaeFileObject ) ) {
             throw new ProviderMismatchException();
         }
         checkByteChannelOpenOptions( options );
@@ -486,7 +542,7 @@ public class GaePath extends Path {
         } else {
             checkAccess( AccessMode.READ );
         }
-        return new GaeFileChannel( (GaeFileObject)fileObject, options );
+        return new GaeFileChannel( (GaeFileObject)getFileObject(), options );
     }
     
     @SuppressWarnings("unchecked")
@@ -540,7 +596,7 @@ public class GaePath extends Path {
             }
         }
         checkAccess( AccessMode.READ );
-        return fileObject.getContent().getInputStream();
+        return getFileObject().getContent().getInputStream();
     }
     
     @Override
@@ -555,7 +611,7 @@ public class GaePath extends Path {
             }
         }
         checkAccess( AccessMode.WRITE );
-        return fileObject.getContent().getOutputStream( optionSet.contains( APPEND ) );
+        return getFileObject().getContent().getOutputStream( optionSet.contains( APPEND ) );
     }
     
     private static Set<OpenOption> checkOutputStreamOpenOptions( OpenOption ... options ) {
@@ -584,7 +640,7 @@ public class GaePath extends Path {
     @Override
     public Path normalize() {
         // FileObject paths are normalized upon creation
-        return new GaePath( fileSystem, fileObject.getName().getPath() );
+        return new GaePath( fileSystem, getFileObject().getName().getPath() );
     }
 
     @Override
@@ -620,7 +676,7 @@ public class GaePath extends Path {
     @Override
     public Path resolve( String other ) {
         try {
-            return new GaePath( fileSystem, fileObject.resolveFile( other ) );
+            return new GaePath( fileSystem, getFileObject().resolveFile( other ) );
         } catch ( FileSystemException e ) {
             throw new InvalidPathException( other, e.toString() );
         }
@@ -635,8 +691,8 @@ public class GaePath extends Path {
             return null;
         }
         try {
-            return new GaePath( fileSystem, fileObject.getName().getRelativeName(
-                                            ((GaePath)other).fileObject.getName() ) );
+            return new GaePath( fileSystem, getFileObject().getName().getRelativeName(
+                                            ((GaePath)other).getFileObject().getName() ) );
         } catch ( FileSystemException e ) {
             throw new InvalidPathException( other.toString(), e.toString() );
         }
@@ -660,7 +716,7 @@ public class GaePath extends Path {
 
     @Override
     public Path toAbsolutePath() {
-        return new GaePath( fileSystem, fileObject.getName().getURI() );
+        return new GaePath( fileSystem, getFileObject().getName().getURI() );
     }
 
     @Override
@@ -676,7 +732,7 @@ public class GaePath extends Path {
     @Override
     public URI toUri() {
         try {
-            return new URI( fileObject.getName().getURI() );
+            return new URI( getFileObject().getName().getURI() );
         } catch ( Exception e ) {
             throw new IOError( e );
         }
@@ -687,16 +743,16 @@ public class GaePath extends Path {
             LinkOption ... options )
     {
         if ( type == BasicFileAttributeView.class ) {
-            return (V)new GaeFileAttributeView( BASIC_VIEW, fileObject );
+            return (V)new GaeFileAttributeView( BASIC_VIEW, getFileObject() );
         } else if ( type == GaeFileAttributeView.class ) {
-            return (V)new GaeFileAttributeView( GAE_VIEW, fileObject );
+            return (V)new GaeFileAttributeView( GAE_VIEW, getFileObject() );
         }
         return null;
     }
     
     private GaeFileAttributeView getGaeFileAttributeView( String viewName ) {
         if ( BASIC_VIEW.equals( viewName ) || GAE_VIEW.equals( viewName ) ) {
-            return new GaeFileAttributeView( viewName, fileObject );
+            return new GaeFileAttributeView( viewName, getFileObject() );
         }
         return null;
     }
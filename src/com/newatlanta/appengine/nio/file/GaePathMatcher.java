@@ -0,0 +1,181 @@
+/*
+ * Copyright 2009 New Atlanta Communications, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.newatlanta.appengine.nio.file;
+
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import com.newatlanta.repackaged.java.nio.file.Path;
+import com.newatlanta.repackaged.java.nio.file.PathMatcher;
+
+/**
+ * Matches the string representation of paths against a "glob" or "regex"
+ * pattern; see {@link com.newatlanta.repackaged.java.nio.file.FileSystem#getPathMatcher(String)}.
+ * Glob patterns are translated to regular expressions.
+ *
+ * @author <a href="mailto:vbonfanti@gmail.com">Vince Bonfanti</a>
+ */
+class GaePathMatcher implements PathMatcher {
+
+    private static final String GLOB_SYNTAX = "glob";
+    private static final String REGEX_SYNTAX = "regex";
+
+    private static final String REGEX_META_CHARS = ".^$+{[]|()";
+    private static final String GLOB_META_CHARS = "\\*?[{";
+
+    private Pattern pattern;
+
+    GaePathMatcher( String syntaxAndPattern ) {
+        int colon = syntaxAndPattern.indexOf( ':' );
+        if ( colon <= 0 ) {
+            throw new IllegalArgumentException( syntaxAndPattern );
+        }
+        String syntax = syntaxAndPattern.substring( 0, colon );
+        String input = syntaxAndPattern.substring( colon + 1 );
+        if ( syntax.equalsIgnoreCase( GLOB_SYNTAX ) ) {
+            pattern = Pattern.compile( globToRegex( input ) );
+        } else if ( syntax.equalsIgnoreCase( REGEX_SYNTAX ) ) {
+            pattern = Pattern.compile( input );
+        } else {
+            throw new UnsupportedOperationException( "Syntax '" + syntax +
+                                                        "' not recognized" );
+        }
+    }
+
+    public boolean matches( Path path ) {
+        return matches( path.toString() );
+    }
+
+    /**
+     * Matches a path string directly, without creating a <code>Path</code>.
+     */
+    boolean matches( String path ) {
+        return pattern.matcher( path ).matches();
+    }
+
+    /**
+     * Translates a glob pattern to a regular expression. Supports <code>*</code>
+     * and <code>?</code> (which don't cross directory boundaries), <code>**</code>
+     * (which does), bracket expressions (<code>[abc]</code>, <code>[a-z]</code>,
+     * <code>[!a-c]</code>), non-nested groups (<code>{foo,bar}</code>), and
+     * backslash escapes.
+     */
+    static String globToRegex( String glob ) {
+        StringBuilder regex = new StringBuilder( "^" );
+        boolean inGroup = false;
+        int i = 0;
+        while ( i < glob.length() ) {
+            char c = glob.charAt( i++ );
+            switch ( c ) {
+                case '\\':
+                    if ( i == glob.length() ) {
+                        throw new PatternSyntaxException( "No character to escape",
+                                                            glob, i - 1 );
+                    }
+                    char next = glob.charAt( i++ );
+                    if ( ( GLOB_META_CHARS.indexOf( next ) >= 0 ) ||
+                            ( REGEX_META_CHARS.indexOf( next ) >= 0 ) ) {
+                        regex.append( '\\' );
+                    }
+                    regex.append( next );
+                    break;
+                case '/':
+                    regex.append( c );
+                    break;
+                case '*':
+                    if ( ( i < glob.length() ) && ( glob.charAt( i ) == '*' ) ) {
+                        regex.append( ".*" );
+                        i++;
+                    } else {
+                        regex.append( "[^/]*" );
+                    }
+                    break;
+                case '?':
+                    regex.append( "[^/]" );
+                    break;
+                case '[':
+                    i = appendBracketExpression( glob, i, regex );
+                    break;
+                case '{':
+                    if ( inGroup ) {
+                        throw new PatternSyntaxException( "Cannot nest groups",
+                                                            glob, i - 1 );
+                    }
+                    regex.append( "(?:(?:" );
+                    inGroup = true;
+                    break;
+                case '}':
+                    if ( inGroup ) {
+                        regex.append( "))" );
+                        inGroup = false;
+                    } else {
+                        regex.append( '}' );
+                    }
+                    break;
+                case ',':
+                    regex.append( inGroup ? ")|(?:" : "," );
+                    break;
+                default:
+                    if ( REGEX_META_CHARS.indexOf( c ) >= 0 ) {
+                        regex.append( '\\' );
+                    }
+                    regex.append( c );
+            }
+        }
+        if ( inGroup ) {
+            throw new PatternSyntaxException( "Missing '}'", glob, i - 1 );
+        }
+        return regex.append( '$' ).toString();
+    }
+
+    /**
+     * Appends the bracket expression that starts at the specified index (just
+     * after the '[') and returns the index following the closing ']'.
+     */
+    private static int appendBracketExpression( String glob, int i,
+                                                    StringBuilder regex ) {
+        regex.append( "[[^/]&&[" );
+        if ( ( i < glob.length() ) && ( glob.charAt( i ) == '^' ) ) {
+            regex.append( "\\^" );
+            i++;
+        } else if ( ( i < glob.length() ) && ( glob.charAt( i ) == '!' ) ) {
+            regex.append( '^' );
+            i++;
+        }
+        boolean isEmpty = true;
+        while ( i < glob.length() ) {
+            char c = glob.charAt( i++ );
+            if ( c == ']' ) {
+                if ( isEmpty ) {
+                    throw new PatternSyntaxException( "Empty bracket expression",
+                                                        glob, i - 1 );
+                }
+                regex.append( "]]" );
+                return i;
+            }
+            if ( c == '/' ) {
+                throw new PatternSyntaxException( "Explicit 'name separator' in class",
+                                                    glob, i - 1 );
+            }
+            if ( ( c == '\\' ) || ( c == '[' ) || ( c == '&' ) ) {
+                regex.append( '\\' );
+            }
+            regex.append( c );
+            isEmpty = false;
+        }
+        throw new PatternSyntaxException( "Missing ']'", glob, i - 1 );
+    }
+}
@@ -17,12 +17,15 @@ package com.newatlanta.appengine.servlet;
 
 import static com.newatlanta.appengine.nio.file.attribute.GaeFileAttributes.withBlockSize;
 import static com.newatlanta.repackaged.java.nio.file.Files.createDirectories;
+import static com.newatlanta.repackaged.java.nio.file.StandardOpenOption.READ;
 import static com.newatlanta.repackaged.java.nio.file.attribute.Attributes.readBasicFileAttributes;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static javax.servlet.http.HttpServletResponse.SC_BAD_REQUEST;
 import static javax.servlet.http.HttpServletResponse.SC_FORBIDDEN;
 import static javax.servlet.http.HttpServletResponse.SC_NOT_FOUND;
 import static javax.servlet.http.HttpServletResponse.SC_NOT_MODIFIED;
+import static javax.servlet.http.HttpServletResponse.SC_PARTIAL_CONTENT;
+import static javax.servlet.http.HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE;
 import static org.apache.commons.fileupload.util.Streams.asString;
 import static org.apache.commons.io.IOUtils.copy;
 import static org.apache.commons.lang.StringEscapeUtils.escapeHtml;
@@ -31,6 +34,7 @@ import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.text.NumberFormat;
 import java.util.Iterator;
 import java.util.StringTokenizer;
@@ -45,8 +49,11 @@ import org.apache.commons.fileupload.FileItemStream;
 import org.apache.commons.fileupload.FileUploadException;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
 
+import com.newatlanta.appengine.nio.file.GaeDirectoryStream;
+import com.newatlanta.repackaged.java.nio.channels.SeekableByteChannel;
 import com.newatlanta.repackaged.java.nio.file.Path;
 import com.newatlanta.repackaged.java.nio.file.Paths;
+import com.newatlanta.repackaged.java.nio.file.ProviderMismatchException;
 import com.newatlanta.repackaged.java.nio.file.attribute.BasicFileAttributes;
 
 /**
@@ -151,6 +158,12 @@ public class GaeVfsServlet extends HttpServlet {
      * If a file is specified, return the file; if a folder is specified, then
      * either return a listing of the folder, or <code>FORBIDDEN</code>, based on
      * configuration.
+     * <p>
+     * Files are returned with <code>ETag</code> and <code>Last-Modified</code>
+     * headers, and conditional GET requests (<code>If-None-Match</code> and
+     * <code>If-Modified-Since</code>) are supported. A single byte range
+     * (<code>Range</code> and <code>If-Range</code>) may be requested, in which
+     * case only the blocks covering the range are read.
      */
     @Override
     public void doGet( HttpServletRequest req, HttpServletResponse res )
@@ -176,12 +189,14 @@ public class GaeVfsServlet extends HttpServlet {
         // the request is for a file, return it
         
         long lastModified = attrs.lastModifiedTime().to( SECONDS ) * 1000;
-        long ifModifiedSince = req.getDateHeader( "If-Modified-Since" );
-        if ( lastModified == ifModifiedSince ) {
-            res.sendError( SC_NOT_MODIFIED );
+        String eTag = createETag( attrs );
+        res.setDateHeader( "Last-Modified", lastModified );
+        res.setHeader( "ETag", eTag );
+        res.setHeader( "Accept-Ranges", "bytes" );
+        if ( isNotModified( req, eTag, lastModified ) ) {
+            res.setStatus( SC_NOT_MODIFIED );
             return;
         }
-        res.setDateHeader( "Last-Modified", lastModified );
 
         // the servlet MIME type is configurable via web.xml
         String contentType = getServletContext().getMimeType( path.getName().toString() );
@@ -189,10 +204,176 @@ public class GaeVfsServlet extends HttpServlet {
             res.setContentType( contentType );
         }
         
-        // IOUtils.copy() buffers the InputStream internally
-        InputStream in = path.newInputStream();
-        res.setContentLength( copy( in, res.getOutputStream() ) );
-        in.close();
+        long size = attrs.size();
+        String rangeHeader = req.getHeader( "Range" );
+        if ( ( rangeHeader != null ) && isIfRangeMatch( req, eTag, lastModified ) ) {
+            long[] range = parseRange( rangeHeader, size );
+            if ( range != null ) {
+                if ( range[ 0 ] >= size ) {
+                    res.setHeader( "Content-Range", "bytes */" + size );
+                    res.sendError( SC_REQUESTED_RANGE_NOT_SATISFIABLE );
+                    return;
+                }
+                long length = range[ 1 ] - range[ 0 ] + 1;
+                res.setStatus( SC_PARTIAL_CONTENT );
+                res.setHeader( "Content-Range", "bytes " + range[ 0 ] + "-" +
+                                                        range[ 1 ] + "/" + size );
+                res.setHeader( "Content-Length", String.valueOf( length ) );
+                copyRange( path, range[ 0 ], length, res );
+                return;
+            }
+        }
+        
+        // the size is known from the metadata, so stream the content as it's read
+        res.setHeader( "Content-Length", String.valueOf( size ) );
+        copyRange( path, 0, size, res );
+    }
+
+    /**
+     * The entity tag is derived from the file metadata, so it changes whenever
+     * the file is modified.
+     */
+    private static String createETag( BasicFileAttributes attrs ) {
+        return "\"" + Long.toHexString( attrs.size() ) + "-" +
+                Long.toHexString( attrs.lastModifiedTime().toMillis() ) + "\"";
+    }
+
+    /**
+     * If <code>If-None-Match</code> is specified it takes precedence over
+     * <code>If-Modified-Since</code>.
+     */
+    private static boolean isNotModified( HttpServletRequest req, String eTag,
+                                            long lastModified ) {
+        String ifNoneMatch = req.getHeader( "If-None-Match" );
+        if ( ifNoneMatch != null ) {
+            StringTokenizer st = new StringTokenizer( ifNoneMatch, "," );
+            while ( st.hasMoreTokens() ) {
+                String tag = st.nextToken().trim();
+                if ( tag.equals( "*" ) || tag.equals( eTag ) ) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        long ifModifiedSince = req.getDateHeader( "If-Modified-Since" );
+        return ( ( ifModifiedSince != -1 ) && ( lastModified <= ifModifiedSince ) );
+    }
+
+    /**
+     * A range request is only honored if <code>If-Range</code> is not specified,
+     * or if it matches the current entity tag or last-modified date.
+     */
+    private static boolean isIfRangeMatch( HttpServletRequest req, String eTag,
+                                            long lastModified ) {
+        String ifRange = req.getHeader( "If-Range" );
+        if ( ifRange == null ) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if ( ifRange.startsWith( "\"" ) || ifRange.startsWith( "W/" ) ) {
+            return ifRange.equals( eTag );
+        }
+        try {
+            return ( req.getDateHeader( "If-Range" ) == lastModified );
+        } catch ( IllegalArgumentException e ) {
+            return false;
+        }
+    }
+
+    /**
+     * Parses a <code>Range</code> header specifying a single byte range; returns
+     * the first and last byte positions (inclusive), or <code>null</code> if the
+     * header is invalid or specifies multiple ranges, in which case it's ignored
+     * and the entire file is returned. The first position is greater than or
+     * equal to <code>size</code> if the range is not satisfiable.
+     */
+    private static long[] parseRange( String rangeHeader, long size ) {
+        rangeHeader = rangeHeader.trim();
+        if ( !rangeHeader.startsWith( "bytes=" ) || ( rangeHeader.indexOf( ',' ) != -1 ) ) {
+            return null;
+        }
+        String range = rangeHeader.substring( "bytes=".length() ).trim();
+        int dash = range.indexOf( '-' );
+        if ( dash == -1 ) {
+            return null;
+        }
+        try {
+            String first = range.substring( 0, dash ).trim();
+            String last = range.substring( dash + 1 ).trim();
+            if ( first.length() == 0 ) { // suffix range: the last n bytes
+                long n = Long.parseLong( last );
+                return ( n > 0 ? new long[] { Math.max( 0, size - n ), size - 1 }
+                               : new long[] { size, size } );
+            }
+            long start = Long.parseLong( first );
+            long end = ( last.length() > 0 ? Long.parseLong( last ) : size - 1 );
+            if ( ( start < 0 ) || ( end < start ) ) {
+                return null;
+            }
+            return new long[] { start, Math.min( end, size - 1 ) };
+        } catch ( NumberFormatException e ) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes <code>length</code> bytes of the file starting at <code>start</code>.
+     * GaeVFS files are read via a channel positioned directly at the start of the
+     * range, so only the blocks covering the range are read; local files are
+     * read via an input stream. The response is flushed after each buffer is
+     * written, so the client receives the content as it's read rather than after
+     * the last block.
+     */
+    private static void copyRange( Path path, long start, long length,
+            HttpServletResponse res ) throws IOException {
+        OutputStream out = res.getOutputStream();
+        SeekableByteChannel channel;
+        try {
+            channel = path.newByteChannel( READ );
+        } catch ( ProviderMismatchException e ) {
+            InputStream in = path.newInputStream();
+            try {
+                long skipped;
+                while ( ( start > 0 ) && ( ( skipped = in.skip( start ) ) > 0 ) ) {
+                    start -= skipped;
+                }
+                copyLarge( in, res, length );
+            } finally {
+                in.close();
+            }
+            return;
+        }
+        try {
+            channel.position( start );
+            ByteBuffer buf = ByteBuffer.allocate( (int)Math.min( BUFF_SIZE, length ) );
+            while ( length > 0 ) {
+                buf.clear().limit( (int)Math.min( buf.capacity(), length ) );
+                int n = channel.read( buf );
+                if ( n <= 0 ) {
+                    break;
+                }
+                out.write( buf.array(), 0, n );
+                res.flushBuffer();
+                length -= n;
+            }
+        } finally {
+            channel.close();
+        }
+    }
+    
+    private static void copyLarge( InputStream in, HttpServletResponse res, long length )
+            throws IOException {
+        OutputStream out = res.getOutputStream();
+        byte[] buf = new byte[ (int)Math.min( BUFF_SIZE, length ) ];
+        while ( length > 0 ) {
+            int n = in.read( buf, 0, (int)Math.min( buf.length, length ) );
+            if ( n == -1 ) {
+                break;
+            }
+            out.write( buf, 0, n );
+            res.flushBuffer();
+            length -= n;
+        }
     }
 
     /**
@@ -222,31 +403,22 @@ public class GaeVfsServlet extends HttpServlet {
             buf.append( "'>Parent Directory</A></TD><TD></TD><TD></TD></TR>\n" );
         }
 
-        Iterator<Path> children = path.newDirectoryStream().iterator();
-        if ( !children.hasNext() ) {
-            buf.append( "<TR><TD>[empty directory]</TD></TR>\n" );
-        } else {
+        GaeDirectoryStream dirStream = (GaeDirectoryStream)path.newDirectoryStream();
+        try {
             NumberFormat nfmt = NumberFormat.getIntegerInstance();
-            buf.append( "<tr><th align='left'>Name</th><th>Size</th>" +
-                "<th aligh='left'>Type</th><th align='left'>Date modified</th></tr>" );
-            while ( children.hasNext() ) {
-                Path child = children.next();
-                buf.append( "<TR><TD><A HREF=\"" ).append( child ).append( "\">" );
-                buf.append( escapeHtml( child.getName().toString() ) );
-                BasicFileAttributes childAttrs = readBasicFileAttributes( child );
-                if ( childAttrs.isDirectory() ) {
-                    buf.append( '/' );
-                }
-                buf.append( "</TD><TD ALIGN=right>" );
-                if ( childAttrs.isRegularFile() ) {
-                    buf.append( nfmt.format( childAttrs.size() ) ).append( " bytes" );
-                }
-                buf.append( "</TD><TD>" );
-                buf.append( childAttrs.isDirectory() ? "directory" : "file" );
-                buf.append( "</TD><TD>" );
-                buf.append( childAttrs.lastModifiedTime() );
-                buf.append( "</TD></TR>\n" );
+            boolean isEmpty = true;
+            // the directory stream reads the attributes of the children in bulk
+            Iterator<GaeDirectoryStream.Entry> entries = dirStream.entries();
+            while ( entries.hasNext() ) {
+                GaeDirectoryStream.Entry entry = entries.next();
+                appendChild( buf, nfmt, entry.getPath(), entry.getAttributes(), isEmpty );
+                isEmpty = false;
             }
+            if ( isEmpty ) {
+                buf.append( "<TR><TD>[empty directory]</TD></TR>\n" );
+            }
+        } finally {
+            dirStream.close();
         }
 
         buf.append( "</TABLE>\n" );
@@ -254,6 +426,28 @@ public class GaeVfsServlet extends HttpServlet {
 
         return buf.toString();
     }
+    
+    private static void appendChild( StringBuffer buf, NumberFormat nfmt, Path child,
+            BasicFileAttributes childAttrs, boolean isFirst ) {
+        if ( isFirst ) {
+            buf.append( "<tr><th align='left'>Name</th><th>Size</th>" +
+                "<th aligh='left'>Type</th><th align='left'>Date modified</th></tr>" );
+        }
+        buf.append( "<TR><TD><A HREF=\"" ).append( child ).append( "\">" );
+        buf.append( escapeHtml( child.getName().toString() ) );
+        if ( childAttrs.isDirectory() ) {
+            buf.append( '/' );
+        }
+        buf.append( "</TD><TD ALIGN=right>" );
+        if ( childAttrs.isRegularFile() ) {
+            buf.append( nfmt.format( childAttrs.size() ) ).append( " bytes" );
+        }
+        buf.append( "</TD><TD>" );
+        buf.append( childAttrs.isDirectory() ? "directory" : "file" );
+        buf.append( "</TD><TD>" );
+        buf.append( childAttrs.lastModifiedTime() );
+        buf.append( "</TD></TR>\n" );
+    }
 
     /**
      * Writes the uploaded file to the GAE virtual file system (GaeVFS). Copied from:
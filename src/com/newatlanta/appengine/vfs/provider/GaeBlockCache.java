@@ -0,0 +1,181 @@
+/*
+ * Copyright 2009 New Atlanta Communications, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.newatlanta.appengine.vfs.provider;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.newatlanta.appengine.datastore.VersionCounter;
+
+/**
+ * An in-instance LRU cache of file blocks, bounded by the total number of bytes
+ * cached; it's the first tier in front of the memcache tier provided by
+ * <code>CachingDatastoreService</code>.
+ * <p>
+ * Blocks are cached by file path, block index, and file version. The version
+ * is a per-file counter kept in memcache and incremented after every write of
+ * the file's blocks (by any instance), so blocks cached under a previous version
+ * are never returned; they're simply evicted as the cache fills (see
+ * {@link VersionCounter}). If the version can't be read from memcache, the
+ * cache is bypassed.
+ * <p>
+ * Versions read from memcache are trusted for the block cache time-to-live (see
+ * {@link GaeVFS#setBlockCacheTtl(int)}), so that repeated reads of the same file
+ * don't each make a memcache call.
+ * <p>
+ * The block content is copied going into and coming out of the cache, because
+ * file channels modify the content of the blocks they read.
+ *
+ * @author <a href="mailto:vbonfanti@gmail.com">Vince Bonfanti</a>
+ */
+class GaeBlockCache {
+
+    private static final String VERSION_PREFIX = "GaeBlockCache.version:";
+
+    private static final String CONTENT_BLOB = "content-blob";
+
+    private static final int ENTRY_OVERHEAD = 128; // approximate bytes per entry
+
+    private static final int MAX_VERSIONS = 1000; // paths
+
+    private final Map<String, Entity> blocks =
+                    new LinkedHashMap<String, Entity>( 16, 0.75f, true );
+
+    private long cachedBytes;
+
+    @SuppressWarnings("serial")
+    private final Map<String, FileVersion> versions =
+                    new LinkedHashMap<String, FileVersion>() {
+        protected boolean removeEldestEntry( Map.Entry<String, FileVersion> eldest ) {
+            return size() > MAX_VERSIONS;
+        }
+    };
+
+    private static class FileVersion {
+        private final Long version;
+        private final long expires; // time in milliseconds
+
+        private FileVersion( Long version, long expires ) {
+            this.version = version;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * Returns the current version of the specified file, or <code>null</code> if
+     * caching is disabled or the version is not available.
+     */
+    Long getVersion( String path ) {
+        if ( GaeVFS.getBlockCacheSize() <= 0 ) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        synchronized ( this ) {
+            FileVersion v = versions.get( path );
+            if ( ( v != null ) && ( now < v.expires ) ) {
+                return v.version;
+            }
+        }
+        Long version = VersionCounter.get( VERSION_PREFIX + path );
+        putVersion( path, version, now );
+        return version;
+    }
+
+    /**
+     * Must be invoked after the blocks of the specified file are written or
+     * deleted, so that all instances stop using previously cached blocks.
+     */
+    void invalidate( String path ) {
+        if ( GaeVFS.getBlockCacheSize() > 0 ) {
+            long now = System.currentTimeMillis();
+            putVersion( path, VersionCounter.increment( VERSION_PREFIX + path ), now );
+        }
+    }
+
+    private synchronized void putVersion( String path, Long version, long now ) {
+        int ttl = GaeVFS.getBlockCacheTtl();
+        if ( ( version != null ) && ( ttl > 0 ) ) {
+            versions.put( path, new FileVersion( version, now + ( ttl * 1000L ) ) );
+        } else {
+            versions.remove( path );
+        }
+    }
+
+    /**
+     * Returns a copy of the cached block, or <code>null</code> if it's not cached.
+     */
+    synchronized Entity get( Key key, Long version ) {
+        if ( version == null ) {
+            return null;
+        }
+        Entity block = blocks.get( createCacheKey( key, version ) );
+        return ( block != null ? copyBlock( block ) : null );
+    }
+
+    /**
+     * Caches a copy of the block, then evicts least-recently used blocks until
+     * the cache is within its size limit.
+     */
+    synchronized void put( Entity block, Long version ) {
+        if ( version == null ) {
+            return;
+        }
+        Entity old = blocks.put( createCacheKey( block.getKey(), version ),
+                                    copyBlock( block ) );
+        if ( old != null ) {
+            cachedBytes -= sizeOf( old );
+        }
+        cachedBytes += sizeOf( block );
+
+        long maxBytes = GaeVFS.getBlockCacheSize();
+        Iterator<Entity> iter = blocks.values().iterator();
+        while ( ( cachedBytes > maxBytes ) && iter.hasNext() ) {
+            cachedBytes -= sizeOf( iter.next() );
+            iter.remove();
+        }
+    }
+
+    synchronized void clear() {
+        blocks.clear();
+        versions.clear();
+        cachedBytes = 0;
+    }
+
+    private static String createCacheKey( Key key, Long version ) {
+        // block key kind is the file path, id is the 1-based block index
+        return key.getKind() + '#' + key.getId() + '@' + version;
+    }
+
+    private static Entity copyBlock( Entity block ) {
+        Entity copy = new Entity( block.getKey() );
+        copy.setPropertiesFrom( block );
+        Blob contentBlob = (Blob)block.getProperty( CONTENT_BLOB );
+        if ( contentBlob != null ) {
+            copy.setUnindexedProperty( CONTENT_BLOB,
+                                new Blob( contentBlob.getBytes().clone() ) );
+        }
+        return copy;
+    }
+
+    private static long sizeOf( Entity block ) {
+        Blob contentBlob = (Blob)block.getProperty( CONTENT_BLOB );
+        return ENTRY_OVERHEAD + ( contentBlob != null ? contentBlob.getBytes().length : 0 );
+    }
+}
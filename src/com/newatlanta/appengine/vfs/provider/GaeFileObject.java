@@ -15,6 +15,11 @@
  */
 package com.newatlanta.appengine.vfs.provider;
 
+import static com.google.appengine.api.datastore.DatastoreServiceFactory.getDatastoreService;
+import static com.google.appengine.api.datastore.Entity.KEY_RESERVED_PROPERTY;
+import static com.google.appengine.api.datastore.FetchOptions.Builder.withLimit;
+import static com.google.appengine.api.datastore.Query.FilterOperator.EQUAL;
+import static com.google.appengine.api.datastore.Query.FilterOperator.GREATER_THAN;
 import static com.newatlanta.appengine.vfs.provider.GaeVFS.checkBlockSize;
 
 import java.io.IOException;
@@ -23,16 +28,20 @@ import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.vfs.FileContent;
 import org.apache.commons.vfs.FileName;
 import org.apache.commons.vfs.FileObject;
+import org.apache.commons.vfs.FileSelector;
 import org.apache.commons.vfs.FileSystemException;
 import org.apache.commons.vfs.FileSystemManager;
 import org.apache.commons.vfs.FileType;
 import org.apache.commons.vfs.RandomAccessContent;
+import org.apache.commons.vfs.Selectors;
 import org.apache.commons.vfs.provider.AbstractFileObject;
 import org.apache.commons.vfs.provider.AbstractFileSystem;
 import org.apache.commons.vfs.util.RandomAccessMode;
@@ -42,7 +51,9 @@ import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
 import com.newatlanta.appengine.datastore.CachingDatastoreService;
+import com.newatlanta.appengine.datastore.CachingDatastoreService.CacheOption;
 
 /**
  * Stores metadata for "files" and "folders" within GaeVFS and manages interactions
@@ -60,16 +71,39 @@ public class GaeFileObject extends AbstractFileObject implements Serializable {
 
     private static final DatastoreService datastore = new CachingDatastoreService();
 
+    // large blocks (whose kinds are file paths) bypass memcache, so that they
+    // don't evict the metadata of other files (see GaeVFS.setUncachedBlockSize)
+    private static final DatastoreService uncachedBlockDatastore = new CachingDatastoreService()
+                            .setCachePolicy( "/*", CacheOption.NO_CACHE, null );
+
+    private static final GaeBlockCache blockCache = new GaeBlockCache();
+
+    private static final GaeMissingFileCache missingFiles = new GaeMissingFileCache();
+
+    private static final GaeMetaDataVersions versions = new GaeMetaDataVersions();
+
     private static final String ENTITY_KIND = "GaeFileObject";
+    private static final String CHILD_INDEX_KIND = "GaeFileObjectChild";
+
+    // child index entries are queried, so they're written directly to the datastore
+    private static final DatastoreService indexDatastore = getDatastoreService();
+
+    private static final int CHILD_PAGE_SIZE = 500; // also the maximum bulk put
+    private static final int DELETE_BATCH_SIZE = 500; // maximum bulk delete
+    
+    // folders don't record child changes more often than this, in milliseconds
+    private static final long FOLDER_MODIFIED_RESOLUTION = 1000;
 
     // metadata property names
     private static final String FILETYPE = "filetype";
     private static final String LAST_MODIFIED = "last-modified";
-    private static final String CHILD_KEYS = "child-keys";
+    private static final String CHILD_KEYS = "child-keys"; // prior to child index
+    private static final String PARENT_PATH = "parent-path"; // child index property
     private static final String CONTENT_SIZE = "content-size";
     private static final String BLOCK_SIZE = "block-size";
 
     private Entity metadata; // the wrapped GAE datastore entity
+    private Long metadataVersion; // when the metadata was read; null if unknown
 
     private boolean isCombinedLocal;
 
@@ -87,6 +121,13 @@ public class GaeFileObject extends AbstractFileObject implements Serializable {
         if ( ( parent != null ) && !parent.exists() ) {
             // check for existing local directory
             FileSystemManager manager = getFileSystem().getFileSystemManager();
+            if ( manager instanceof GaeFileSystemManager ) {
+                if ( ((GaeFileSystemManager)manager).getLocalFileIndex().getType(
+                                parent.getName().getPath() ).hasChildren() ) {
+                    parent.createFolder(); // make sure GaeVFS "shadow" folder exists
+                }
+                return parent;
+            }
             FileObject localDir = manager.resolveFile( "file://" +
                     GaeFileNameParser.getRootPath( manager.getBaseFile().getName() ) +
                         parent.getName().getPath() );
@@ -119,13 +160,91 @@ public class GaeFileObject extends AbstractFileObject implements Serializable {
         return blockSize.intValue();
     }
 
-    @SuppressWarnings("unchecked")
-    private List<Key> getChildKeys() throws FileSystemException {
+    /**
+     * Gets up to <code>limit</code> paths of the children of this folder, in path
+     * order, starting after <code>afterPath</code> (or with the first child if
+     * <code>afterPath</code> is <code>null</code>). Only GaeVFS children are
+     * returned, not local children.
+     * <p>
+     * The children of a folder are stored in a child index of one entity per
+     * child, so that adding or removing a child doesn't rewrite the metadata list
+     * of every child, and children can be listed a page at a time. Each entry is
+     * its own entity group, keyed by the child path and queried by the folder
+     * path, so that children can be created and deleted concurrently without
+     * contending for the folder's entity group.
+     */
+    public List<String> getChildPaths( String afterPath, int limit )
+            throws FileSystemException {
+        checkHasChildren();
+        migrateChildKeys();
+        Query query = new Query( CHILD_INDEX_KIND ).setKeysOnly();
+        query.addFilter( PARENT_PATH, EQUAL, metadata.getKey().getName() );
+        if ( afterPath != null ) {
+            query.addFilter( KEY_RESERVED_PROPERTY, GREATER_THAN,
+                                createChildIndexKey( afterPath ) );
+        }
+        query.addSort( KEY_RESERVED_PROPERTY );
+        List<String> childPaths = new ArrayList<String>();
+        for ( Entity entry : indexDatastore.prepare( query ).asIterable( withLimit( limit ) ) ) {
+            childPaths.add( entry.getKey().getName() );
+        }
+        return childPaths;
+    }
+    
+    private void checkHasChildren() throws FileSystemException {
         if ( !getType().hasChildren() ) {
             throw new FileSystemException( "vfs.provider/list-children-not-folder.error",
                                                 getName() );
         }
-        return (List<Key>)metadata.getProperty( CHILD_KEYS );
+    }
+    
+    private List<String> getChildPaths() throws FileSystemException {
+        List<String> childPaths = new ArrayList<String>();
+        List<String> page = getChildPaths( null, CHILD_PAGE_SIZE );
+        while ( !page.isEmpty() ) {
+            childPaths.addAll( page );
+            if ( page.size() < CHILD_PAGE_SIZE ) {
+                break;
+            }
+            page = getChildPaths( page.get( page.size() - 1 ), CHILD_PAGE_SIZE );
+        }
+        return childPaths;
+    }
+    
+    private static Key createChildIndexKey( String childPath ) {
+        return KeyFactory.createKey( CHILD_INDEX_KIND, childPath );
+    }
+    
+    private Entity createChildIndexEntry( String childPath ) {
+        Entity entry = new Entity( createChildIndexKey( childPath ) );
+        entry.setProperty( PARENT_PATH, metadata.getKey().getName() );
+        return entry;
+    }
+    
+    /**
+     * Folders created prior to the child index store the keys of their children
+     * in the CHILD_KEYS metadata property; move them to the child index. This
+     * isn't a modification of the folder, so the last modified time is kept.
+     */
+    @SuppressWarnings("unchecked")
+    private void migrateChildKeys() throws FileSystemException {
+        List<Key> childKeys = (List<Key>)metadata.getProperty( CHILD_KEYS );
+        if ( childKeys == null ) {
+            return;
+        }
+        List<Entity> entries = new ArrayList<Entity>( CHILD_PAGE_SIZE );
+        for ( Key childKey : childKeys ) {
+            entries.add( createChildIndexEntry( childKey.getName() ) );
+            if ( entries.size() == CHILD_PAGE_SIZE ) {
+                indexDatastore.put( entries );
+                entries.clear();
+            }
+        }
+        if ( !entries.isEmpty() ) {
+            indexDatastore.put( entries );
+        }
+        metadata.removeProperty( CHILD_KEYS );
+        writeMetaData();
     }
 
     // FileType is not a valid property type, so store the name
@@ -156,12 +275,19 @@ public class GaeFileObject extends AbstractFileObject implements Serializable {
     }
 
     private synchronized void getMetaData( Key key ) throws FileSystemException {
-        try {
-            metadata = datastore.get( key );
-        } catch ( EntityNotFoundException e ) {
-            metadata = new Entity( ENTITY_KIND, key.getName() );
-            setBlockSize( GaeVFS.getBlockSize() );
+        metadataVersion = null;
+        if ( !missingFiles.isMissing( key.getName() ) ) {
+            // get the version first, so that a concurrent write isn't missed
+            metadataVersion = versions.getVersion( key.getName() );
+            try {
+                metadata = datastore.get( key );
+                return;
+            } catch ( EntityNotFoundException e ) {
+                missingFiles.putMissing( key.getName() );
+            }
         }
+        metadata = new Entity( ENTITY_KIND, key.getName() );
+        setBlockSize( GaeVFS.getBlockSize() );
     }
 
     private Key createKey() throws FileSystemException {
@@ -176,6 +302,41 @@ public class GaeFileObject extends AbstractFileObject implements Serializable {
     @Override
     protected void doDetach() throws FileSystemException {
         metadata = null;
+        metadataVersion = null;
+    }
+
+    /**
+     * Returns true if the metadata of this file hasn't been written by any
+     * instance since it was read, as determined by its version in memcache;
+     * if false, this file should be refreshed before being trusted.
+     */
+    public synchronized boolean isMetaDataCurrent() {
+        if ( metadata == null ) {
+            return true; // will be read when attached
+        }
+        return isMetaDataCurrent( versions.getVersion( getName().getPath() ) );
+    }
+
+    /**
+     * Returns true if the metadata of this file was read at the specified
+     * version, or hasn't been read.
+     */
+    private synchronized boolean isMetaDataCurrent( Long version ) {
+        return ( metadata == null ) ||
+                    ( ( metadataVersion != null ) && metadataVersion.equals( version ) );
+    }
+
+    /**
+     * Returns the specified file from the files cache without checking whether
+     * it's current, or <code>null</code> if it's not cached.
+     */
+    private FileObject getCachedFile( String path ) throws FileSystemException {
+        FileSystemManager manager = getFileSystem().getFileSystemManager();
+        if ( !( manager.getFilesCache() instanceof GaeFilesCache ) ) {
+            return null;
+        }
+        return ((GaeFilesCache)manager.getFilesCache()).getFile( getFileSystem(),
+                                            manager.resolveName( getName(), path ) );
     }
 
     /**
@@ -206,16 +367,8 @@ public class GaeFileObject extends AbstractFileObject implements Serializable {
      */
     @Override
     protected String[] doListChildren() throws FileSystemException {
-        List<Key> childKeys = getChildKeys();
-        if ( ( childKeys == null ) || ( childKeys.size() == 0 ) ) {
-            return new String[ 0 ];
-        }
-        String[] childNames = new String[ childKeys.size() ];
-        int i = 0;
-        for ( Key childKey : childKeys ) {
-            childNames[ i++ ] = childKey.getName();
-        }
-        return childNames;
+        List<String> childPaths = getChildPaths();
+        return childPaths.toArray( new String[ childPaths.size() ] );
     }
 
     /**
@@ -227,29 +380,117 @@ public class GaeFileObject extends AbstractFileObject implements Serializable {
      */
     @Override
     protected FileObject[] doListChildrenResolved() throws FileSystemException {
-        List<Key> childKeys = getChildKeys();
+        List<String> childPaths = getChildPaths();
         FileObject[] localChildren = getLocalChildren();
-        if ( ( childKeys == null ) || ( childKeys.size() == 0 ) ) {
+        if ( childPaths.size() == 0 ) {
             return localChildren;
         }
-        FileObject[] children = new FileObject[ localChildren.length + childKeys.size() ];
+        FileObject[] children = new FileObject[ localChildren.length + childPaths.size() ];
 
         if ( localChildren.length > 0 ) {
             System.arraycopy( localChildren, 0, children, 0, localChildren.length );
         }
         int i = localChildren.length;
 
-        for ( Key child : childKeys ) {
-            children[ i++ ] = resolveFile( child.getName() );
+        for ( FileObject child : resolveChildren( childPaths ) ) {
+            children[ i++ ] = child;
+        }
+        return children;
+    }
+    
+    /**
+     * Resolves the specified children of this folder (as returned by
+     * {@link #getChildPaths(String, int)}), and reads the metadata of those not
+     * already attached using as few bulk gets as possible, rather than one get
+     * per child. The paths are absolute, so they may also be the children of
+     * other GaeVFS folders, for example when walking a file tree.
+     * <p>
+     * Children found in the files cache aren't checked one at a time, as they
+     * would be by {@link GaeFilesCache}; instead, their metadata versions are
+     * checked with as few memcache calls as possible, and those that changed
+     * are refreshed and read with the others.
+     */
+    public List<FileObject> resolveChildren( List<String> childPaths )
+            throws FileSystemException {
+        List<FileObject> children = new ArrayList<FileObject>( childPaths.size() );
+        List<GaeFileObject> cached = new ArrayList<GaeFileObject>();
+        for ( String childPath : childPaths ) {
+            FileObject child = getCachedFile( childPath );
+            if ( child == null ) {
+                child = resolveFile( childPath );
+            } else if ( child instanceof GaeFileObject ) {
+                cached.add( (GaeFileObject)child );
+            }
+            children.add( child );
+        }
+        for ( int from = 0; from < cached.size(); from += CHILD_PAGE_SIZE ) {
+            List<GaeFileObject> batch = cached.subList( from,
+                            Math.min( from + CHILD_PAGE_SIZE, cached.size() ) );
+            List<String> paths = new ArrayList<String>( batch.size() );
+            for ( GaeFileObject child : batch ) {
+                paths.add( child.getName().getPath() );
+            }
+            Map<String, Long> childVersions = versions.getVersions( paths );
+            for ( int i = 0; i < batch.size(); i++ ) {
+                if ( !batch.get( i ).isMetaDataCurrent( childVersions.get( paths.get( i ) ) ) ) {
+                    batch.get( i ).refresh();
+                }
+            }
+        }
+        List<GaeFileObject> unattached = new ArrayList<GaeFileObject>();
+        for ( FileObject child : children ) {
+            if ( ( child instanceof GaeFileObject ) &&
+                    ( ((GaeFileObject)child).metadata == null ) ) {
+                unattached.add( (GaeFileObject)child );
+            }
+        }
+        for ( int from = 0; from < unattached.size(); from += CHILD_PAGE_SIZE ) {
+            List<GaeFileObject> batch = unattached.subList( from,
+                            Math.min( from + CHILD_PAGE_SIZE, unattached.size() ) );
+            List<Key> keys = new ArrayList<Key>( batch.size() );
+            List<String> paths = new ArrayList<String>( batch.size() );
+            for ( GaeFileObject child : batch ) {
+                keys.add( child.createKey() );
+                paths.add( child.getName().getPath() );
+            }
+            Map<String, Long> childVersions = versions.getVersions( paths );
+            Map<Key, Entity> entities = datastore.get( keys );
+            for ( int i = 0; i < batch.size(); i++ ) {
+                Entity entity = entities.get( keys.get( i ) );
+                if ( entity != null ) {
+                    batch.get( i ).setMetaData( entity, childVersions.get( paths.get( i ) ) );
+                }
+            }
         }
         return children;
     }
+    
+    /**
+     * Sets the metadata read by a bulk get, and its version (if known) read
+     * before the get; ignored if already attached.
+     */
+    private synchronized void setMetaData( Entity entity, Long version ) {
+        if ( metadata == null ) {
+            metadata = entity;
+            metadataVersion = version;
+        }
+    }
 
-    private FileObject[] getLocalChildren() throws FileSystemException {
+    /**
+     * Returns the local children of this folder if the combined local option is
+     * enabled, or an empty array.
+     */
+    public FileObject[] getLocalChildren() throws FileSystemException {
         if ( isCombinedLocal ) {
             GaeFileName fileName = (GaeFileName)getName();
+            FileSystemManager manager = getFileSystem().getFileSystemManager();
+            if ( ( manager instanceof GaeFileSystemManager ) &&
+                    !((GaeFileSystemManager)manager).getLocalFileIndex().getType(
+                                    fileName.getPath() ).hasChildren() ) {
+                return new FileObject[ 0 ]; // no local folder
+            }
             String localUri = "file://" + fileName.getRootPath() + fileName.getPath();
-            FileObject localFile = getFileSystem().getFileSystemManager().resolveFile( localUri );
+            FileObject localFile = manager.resolveFile( localUri );
             if ( localFile.exists() ) {
                 return localFile.getChildren();
             }
@@ -267,6 +508,74 @@ public class GaeFileObject extends AbstractFileObject implements Serializable {
         // an exception
     }
 
+    /**
+     * Overrides the superclass implementation so that when all files are
+     * selected, a folder and all of its GaeVFS descendants are deleted with
+     * batched datastore deletes, rather than deleting (and updating the parent
+     * of) each descendant individually. The parent of this folder is updated
+     * once, when this folder is deleted. Local children (see the combined local
+     * option) are never deleted.
+     */
+    @Override
+    public int delete( FileSelector selector ) throws FileSystemException {
+        if ( ( selector != Selectors.SELECT_ALL ) || !getType().hasChildren() ) {
+            return super.delete( selector );
+        }
+        int count = deleteDescendants();
+        refresh(); // discard the cached children
+        return count + super.delete( Selectors.SELECT_SELF );
+    }
+
+    /**
+     * Deletes the GaeVFS descendants of this folder a level at a time: the
+     * children of each folder are read a page at a time from its child index
+     * and their metadata is read with bulk gets; the metadata, block, and child
+     * index entities are then deleted in batches. Returns the number of files
+     * and folders deleted.
+     */
+    private int deleteDescendants() throws FileSystemException {
+        DeleteBatch deleteKeys = new DeleteBatch( datastore );
+        DeleteBatch deleteIndexKeys = new DeleteBatch( indexDatastore );
+        int count = 0;
+        List<GaeFileObject> level = new ArrayList<GaeFileObject>();
+        level.add( this );
+        while ( !level.isEmpty() ) {
+            List<GaeFileObject> nextLevel = new ArrayList<GaeFileObject>();
+            for ( GaeFileObject folder : level ) {
+                List<String> childPaths = folder.getChildPaths( null, CHILD_PAGE_SIZE );
+                while ( !childPaths.isEmpty() ) {
+                    for ( FileObject child : resolveChildren( childPaths ) ) {
+                        GaeFileObject gaeChild = (GaeFileObject)child;
+                        if ( gaeChild.getType().hasChildren() ) {
+                            nextLevel.add( gaeChild ); // deleted after its children
+                        } else if ( gaeChild.getType().hasContent() ) {
+                            deleteKeys.addAll( gaeChild.getBlockKeys( 0 ) );
+                            deleteKeys.add( gaeChild.metadata.getKey() );
+                            gaeChild.refresh(); // re-read when next attached
+                            count++;
+                        }
+                        deleteIndexKeys.add( createChildIndexKey(
+                                                gaeChild.getName().getPath() ) );
+                    }
+                    if ( childPaths.size() < CHILD_PAGE_SIZE ) {
+                        break;
+                    }
+                    childPaths = folder.getChildPaths( childPaths.get(
+                                    childPaths.size() - 1 ), CHILD_PAGE_SIZE );
+                }
+                if ( folder != this ) {
+                    deleteKeys.add( folder.metadata.getKey() );
+                    folder.refresh();
+                    count++;
+                }
+            }
+            level = nextLevel;
+        }
+        deleteKeys.flush();
+        deleteIndexKeys.flush();
+        return count;
+    }
+
     /**
      * Renames the file. If a folder, recursively rename the children.
      */
@@ -286,16 +595,26 @@ public class GaeFileObject extends AbstractFileObject implements Serializable {
             GaeFileObject newGaeFile = (GaeFileObject)newfile;
             newGaeFile.metadata.setPropertiesFrom( this.metadata );
             
-            // copy contents (blocks) to new file
-            Map<Key, Entity> blocks = datastore.get( getBlockKeys( 0 ) );
-            List<Entity> newBlocks = new ArrayList<Entity>( blocks.size());
-            for ( Entity block : blocks.values() ) {
-                Entity newBlock = newGaeFile.getBlock( block.getKey().getId() - 1 );
-                newBlock.setPropertiesFrom( block );
-                newBlocks.add( newBlock );
-            }
-            newGaeFile.putContent( newBlocks );
+            // copy contents (blocks) to new file; the metadata is written when
+            // the superclass notifies the new file that it was created
+            copyBlocks( 0, newGaeFile, 0, getNumberOfBlocks() );
+        }
+    }
+    
+    /**
+     * Copies the content of this file to <code>dest</code> within the datastore,
+     * without streaming it through this instance. If <code>dest</code> exists
+     * it's replaced; it's created with the same block size as this file.
+     */
+    public void copyContentTo( GaeFileObject dest ) throws FileSystemException {
+        if ( !getType().hasContent() ) {
+            throw new FileSystemException( "vfs.provider/read-not-file.error", getName() );
         }
+        dest.delete();
+        dest.setBlockSize( getBlockSize() );
+        dest.createFile();
+        copyBlocks( 0, dest, 0, getNumberOfBlocks() );
+        dest.updateContentSize( doGetContentSize(), true );
     }
 
     /**
@@ -319,28 +638,26 @@ public class GaeFileObject extends AbstractFileObject implements Serializable {
     }
 
     /**
-     * Called when the children of this file change.
+     * Called when the children of this file change. Adds or removes the child
+     * index entry of the child, then writes the metadata to update the last
+     * modified time. To limit writes of the folder metadata while many children
+     * are created or deleted, the last modified time of a folder has a resolution
+     * of one second: it's not written again if it was updated more recently, but
+     * its version is still incremented so other instances refresh its children.
      */
     protected void onChildrenChanged( FileName child, FileType newType ) throws FileSystemException {
-        Key childKey = createKey( child );
-        List<Key> childKeys = getChildKeys();
+        checkHasChildren();
+        migrateChildKeys();
         if ( newType == FileType.IMAGINARY ) { // child being deleted
-            if ( childKeys != null ) {
-                childKeys.remove( childKey );
-                if ( childKeys.size() == 0 ) {
-                    metadata.removeProperty( CHILD_KEYS );
-                }
-            }
+            indexDatastore.delete( createChildIndexKey( child.getPath() ) );
         } else { // child being added
-            if ( childKeys == null ) {
-                childKeys = new ArrayList<Key>();
-                childKeys.add( childKey );
-                metadata.setUnindexedProperty( CHILD_KEYS, childKeys );
-            } else if ( !childKeys.contains( childKey ) ) {
-                childKeys.add( childKey );
-            }
+            indexDatastore.put( createChildIndexEntry( child.getPath() ) );
+        }
+        if ( ( System.currentTimeMillis() - doGetLastModifiedTime() ) >= FOLDER_MODIFIED_RESOLUTION ) {
+            putMetaData();
+        } else {
+            metadataWritten();
         }
-        putMetaData();
     }
 
     /**
@@ -361,6 +678,8 @@ public class GaeFileObject extends AbstractFileObject implements Serializable {
 
     private synchronized void deleteMetaData() throws FileSystemException {
         datastore.delete( metadata.getKey() );
+        missingFiles.putMissing( metadata.getKey().getName() );
+        metadataWritten();
         // metadata.getProperties().clear(); // see issue #1395
         Object[] properties = metadata.getProperties().keySet().toArray();
         for ( int i = 0; i < properties.length; i++ ) {
@@ -377,7 +696,29 @@ public class GaeFileObject extends AbstractFileObject implements Serializable {
         if ( getType().hasChildren() ) {
             doSetLastModTime( System.currentTimeMillis() );
         }
+        writeMetaData();
+    }
+    
+    private synchronized void writeMetaData() {
         datastore.put( metadata );
+        missingFiles.remove( metadata.getKey().getName() );
+        metadataWritten();
+    }
+
+    /**
+     * Increments the metadata version after the metadata is written or deleted.
+     * The cached metadata remains current only if no other instance wrote it
+     * since it was read.
+     */
+    private void metadataWritten() {
+        Long previous = metadataVersion;
+        Long version = versions.increment( metadata.getKey().getName() );
+        if ( ( previous != null ) && ( version != null ) &&
+                ( version.longValue() == previous.longValue() + 1 ) ) {
+            metadataVersion = version;
+        } else {
+            metadataVersion = null; // refreshed when next checked
+        }
     }
 
     /**
@@ -419,10 +760,23 @@ public class GaeFileObject extends AbstractFileObject implements Serializable {
 
     public void updateContentSize( long newSize, boolean force )
             throws FileSystemException {
+        if ( setContentSize( newSize, force ) ) {
+            putMetaData();
+        }
+    }
+
+    /**
+     * Sets the content size without writing the metadata to the datastore; the
+     * caller is responsible for writing it later via putMetaData() or
+     * putContent(). Returns true if the content size was modified.
+     */
+    public boolean setContentSize( long newSize, boolean force )
+            throws FileSystemException {
         if ( force || ( newSize > doGetContentSize() ) ) {
             metadata.setProperty( CONTENT_SIZE, Long.valueOf( newSize ) );
-            putMetaData();
+            return true;
         }
+        return false;
     }
 
     @Override
@@ -466,7 +820,11 @@ public class GaeFileObject extends AbstractFileObject implements Serializable {
                                                         bAppend ).getOutputStream();
     }
     
-    private synchronized void putContent( List<Entity> blocks ) throws FileSystemException {
+    /**
+     * Writes the blocks, plus the metadata, using as few bulk puts as possible.
+     * The metadata is inserted at the head of the list.
+     */
+    public synchronized void putContent( List<Entity> blocks ) throws FileSystemException {
         if ( blocks.isEmpty() ) {
             return; // nothing to do
         }
@@ -477,15 +835,33 @@ public class GaeFileObject extends AbstractFileObject implements Serializable {
         int max = maxBlocksPerBulkOperation();
         for ( int from = 0; from < blocks.size(); from += max ) {
             int to = Math.min( from + max, blocks.size() );
-            datastore.put( blocks.subList( from, to ) );
+            getBlockDatastore().put( blocks.subList( from, to ) );
         }
+        missingFiles.remove( metadata.getKey().getName() );
+        metadataWritten();
+        blockCache.invalidate( getName().getPath() );
     }
     
     public void putBlock( Entity block ) {
         if ( !block.getKey().isComplete() ) {
             throw new IllegalArgumentException( "incomplete block key" );
         }
-        datastore.put( block );
+        getBlockDatastore().put( block );
+        blockCache.invalidate( getName().getPath() );
+    }
+    
+    /**
+     * Clears the in-instance block cache; intended for use by GaeVFS.
+     */
+    static void clearBlockCache() {
+        blockCache.clear();
+    }
+    
+    /**
+     * Clears the in-instance cache of missing files; intended for use by GaeVFS.
+     */
+    static void clearMissingFileCache() {
+        missingFiles.clear();
     }
     
     public void endOutput() throws FileSystemException {
@@ -504,7 +880,7 @@ public class GaeFileObject extends AbstractFileObject implements Serializable {
      * In practice, with a minimum block size of 8KB, plus 2KB for entity
      * overhead, the maximum number of entities in a bulk put is about 100.
      */
-    private int maxBlocksPerBulkOperation() {
+    public int maxBlocksPerBulkOperation() {
         int blocksPerBulk = 1;
         try {
             blocksPerBulk = ( 1000 * 1024  ) / ( getBlockSize() + 2048 );
@@ -514,15 +890,98 @@ public class GaeFileObject extends AbstractFileObject implements Serializable {
     }
     
     /**
-     * Get the block at the specified index. The index is 0-based.
+     * Get the block at the specified index. The index is 0-based. The block is
+     * returned from the in-instance block cache, if present.
      */
     public Entity getBlock( long index ) throws FileSystemException {
         Key blockKey = createBlockKey( index );
-        try {
-            return datastore.get( blockKey );
-        } catch ( EntityNotFoundException e ) {
-            return new Entity( blockKey );
+        Long version = blockCache.getVersion( getName().getPath() );
+        Entity block = blockCache.get( blockKey, version );
+        if ( block == null ) {
+            try {
+                block = getBlockDatastore().get( blockKey );
+            } catch ( EntityNotFoundException e ) {
+                block = new Entity( blockKey );
+            }
+            blockCache.put( block, version );
+        }
+        return block;
+    }
+    
+    /**
+     * Get <code>count</code> consecutive blocks starting at the specified index
+     * using a single bulk get. The index is 0-based. Blocks that don't exist are
+     * returned as new (empty) entities, so the returned list always contains
+     * <code>count</code> blocks in index order. Blocks present in the in-instance
+     * block cache are not fetched.
+     */
+    public List<Entity> getBlocks( long from, int count ) {
+        Long version = blockCache.getVersion( getName().getPath() );
+        List<Entity> blocks = new ArrayList<Entity>( count );
+        List<Key> keys = new ArrayList<Key>( count ); // blocks not in the cache
+        for ( long i = from; i < ( from + count ); i++ ) {
+            Key key = createBlockKey( i );
+            Entity block = blockCache.get( key, version );
+            blocks.add( block );
+            if ( block == null ) {
+                keys.add( key );
+            }
+        }
+        if ( !keys.isEmpty() ) {
+            Map<Key, Entity> blockMap = getBlockDatastore().get( keys );
+            for ( int i = 0; i < count; i++ ) {
+                if ( blocks.get( i ) == null ) {
+                    Key key = createBlockKey( from + i );
+                    Entity block = blockMap.get( key );
+                    if ( block == null ) {
+                        block = new Entity( key );
+                    }
+                    blockCache.put( block, version );
+                    blocks.set( i, block );
+                }
+            }
+        }
+        return blocks;
+    }
+    
+    /**
+     * Copies <code>numBlocks</code> blocks, starting at the specified index, to
+     * the destination file starting at <code>destFrom</code>; indexes are 0-based.
+     * Blocks are copied entity-to-entity without buffering their contents, one
+     * bulk get and one bulk put per batch, so memory use is bounded regardless of
+     * the number of blocks copied. Source and destination must have the same
+     * block size.
+     */
+    public void copyBlocks( long from, GaeFileObject dest, long destFrom, long numBlocks )
+            throws FileSystemException {
+        int max = Math.min( maxBlocksPerBulkOperation(), dest.maxBlocksPerBulkOperation() );
+        for ( long i = 0; i < numBlocks; i += max ) {
+            int n = (int)Math.min( max, numBlocks - i );
+            List<Entity> blocks = getBlocks( from + i, n );
+            List<Entity> newBlocks = new ArrayList<Entity>( n );
+            for ( int j = 0; j < n; j++ ) {
+                Entity newBlock = new Entity( dest.createBlockKey( destFrom + i + j ) );
+                newBlock.setPropertiesFrom( blocks.get( j ) );
+                newBlocks.add( newBlock );
+            }
+            dest.getBlockDatastore().put( newBlocks );
+        }
+        blockCache.invalidate( dest.getName().getPath() );
+    }
+    
+    /**
+     * Returns the datastore service for the blocks of this file: blocks of at
+     * least the uncached block size are not cached in memcache. The metadata is
+     * cached either way.
+     */
+    private DatastoreService getBlockDatastore() {
+        Long blockSize = (Long)metadata.getProperty( BLOCK_SIZE );
+        int uncachedSize = GaeVFS.getUncachedBlockSize();
+        if ( ( uncachedSize > 0 ) && ( blockSize != null ) &&
+                ( blockSize.longValue() >= ( uncachedSize * 1024L ) ) ) {
+            return uncachedBlockDatastore;
         }
+        return datastore;
     }
     
     /**
@@ -533,6 +992,11 @@ public class GaeFileObject extends AbstractFileObject implements Serializable {
         return KeyFactory.createKey( getName().getPath(), index + 1 );
     }
     
+    private long getNumberOfBlocks() throws FileSystemException {
+        int blockSize = getBlockSize();
+        return ( ( doGetContentSize() + blockSize - 1 ) / blockSize );
+    }
+    
     private List<Key> getBlockKeys( long from ) throws FileSystemException {
         long eofBlockIndex = doGetContentSize() / getBlockSize();
         List<Key> keys = new ArrayList<Key>();
@@ -547,9 +1011,65 @@ public class GaeFileObject extends AbstractFileObject implements Serializable {
      * but block key id's are 1-based.
      */
     public void deleteBlocks( long from ) throws FileSystemException {
-        Collection<Key> deleteKeys = getBlockKeys( from );
-        if ( !deleteKeys.isEmpty() ) {
-            datastore.delete( deleteKeys );
+        Collection<Key> blockKeys = getBlockKeys( from );
+        if ( !blockKeys.isEmpty() ) {
+            DeleteBatch deleteKeys = new DeleteBatch( datastore );
+            deleteKeys.addAll( blockKeys );
+            deleteKeys.flush(); // invalidates the block cache
+        }
+    }
+    
+    /**
+     * Collects keys to be deleted, and deletes them in batches of the maximum
+     * size allowed by the datastore.
+     * <p>
+     * The block cache is invalidated for each file whose blocks are deleted,
+     * because a partial write to a file that's re-created at the same path reads
+     * its block before writing it. The metadata versions of deleted files are
+     * invalidated with a single memcache call per batch.
+     */
+    private static class DeleteBatch {
+        
+        private DatastoreService datastore;
+        private List<Key> keys = new ArrayList<Key>();
+        
+        private DeleteBatch( DatastoreService datastore ) {
+            this.datastore = datastore;
+        }
+        
+        private void add( Key key ) {
+            keys.add( key );
+            if ( keys.size() == DELETE_BATCH_SIZE ) {
+                flush();
+            }
+        }
+        
+        private void addAll( Collection<Key> keys ) {
+            for ( Key key : keys ) {
+                add( key );
+            }
+        }
+        
+        private void flush() {
+            if ( !keys.isEmpty() ) {
+                datastore.delete( keys );
+                List<String> paths = new ArrayList<String>();
+                Set<String> blockPaths = new HashSet<String>();
+                for ( Key key : keys ) {
+                    if ( ENTITY_KIND.equals( key.getKind() ) ) {
+                        paths.add( key.getName() );
+                    } else if ( !CHILD_INDEX_KIND.equals( key.getKind() ) ) {
+                        blockPaths.add( key.getKind() ); // block kind is the file path
+                    }
+                }
+                if ( !paths.isEmpty() ) {
+                    versions.invalidate( paths );
+                }
+                for ( String path : blockPaths ) {
+                    blockCache.invalidate( path );
+                }
+                keys = new ArrayList<Key>();
+            }
         }
     }
 
@@ -21,6 +21,7 @@ import org.apache.commons.vfs.FileName;
 import org.apache.commons.vfs.FileObject;
 import org.apache.commons.vfs.FileSystemException;
 import org.apache.commons.vfs.FileSystemOptions;
+import org.apache.commons.vfs.FilesCache;
 import org.apache.commons.vfs.provider.AbstractFileSystem;
 
 /**
@@ -47,11 +48,22 @@ public class GaeFileSystem extends AbstractFileSystem {
         return new GaeFileObject( fileName, this );
     }
     
+    /**
+     * Resolves cached files without locking; only files that aren't cached are
+     * resolved by the superclass, which is synchronized.
+     */
     @Override
-    public synchronized FileObject resolveFile( FileName name ) throws FileSystemException {
+    public FileObject resolveFile( FileName name ) throws FileSystemException {
         if ( !"gae".equals( name.getScheme() ) ) {
             return getFileSystemManager().resolveFile( name.toString() );
         }
+        FilesCache filesCache = getFileSystemManager().getFilesCache();
+        if ( filesCache instanceof GaeFilesCache ) {
+            FileObject file = ((GaeFilesCache)filesCache).resolveFile( this, name );
+            if ( file != null ) {
+                return file;
+            }
+        }
         return super.resolveFile( name );
     }
 }
@@ -23,7 +23,7 @@ import org.apache.commons.vfs.FileName;
 import org.apache.commons.vfs.FileObject;
 import org.apache.commons.vfs.FileSystemException;
 import org.apache.commons.vfs.FileSystemOptions;
-import org.apache.commons.vfs.cache.LRUFilesCache;
+import org.apache.commons.vfs.FileType;
 import org.apache.commons.vfs.impl.StandardFileSystemManager;
 import org.apache.commons.vfs.provider.UriParser;
 
@@ -46,6 +46,7 @@ public class GaeFileSystemManager extends StandardFileSystemManager {
     private boolean isCombinedLocal = true;
     private String rootPath;
     private FileObject rootObject;
+    private GaeLocalFileIndex localFileIndex;
 
     public GaeFileSystemManager() {
     }
@@ -74,11 +75,13 @@ public class GaeFileSystemManager extends StandardFileSystemManager {
     }
 
     /**
-     * Prepare for initialization. 
+     * Prepare for initialization. GaeVFS files are refreshed by the files cache
+     * when they're resolved only if their metadata has changed, rather than
+     * every time they're resolved (see {@link GaeVFS#setFilesCacheTtl(int)}).
      */
     public void prepare( String rootPath, URL configUrl ) throws FileSystemException {
-        setFilesCache( new LRUFilesCache() );
-        setCacheStrategy( CacheStrategy.ON_RESOLVE );
+        setFilesCache( new GaeFilesCache() );
+        setCacheStrategy( CacheStrategy.MANUAL );
         setConfiguration( configUrl );
 
         this.rootPath = new File( rootPath ).getAbsolutePath();
@@ -135,7 +138,7 @@ public class GaeFileSystemManager extends StandardFileSystemManager {
             uri = checkRelativity( baseFile, uri );
 
             FileObject fileObject = super.resolveFile( baseFile, uri, opts );
-            if ( fileObject.exists() && ( fileObject.getType().hasContent() ) ) {
+            if ( isFile( fileObject ) ) {
                 return fileObject; // return existing file
             }
             // fileObject doesn't exist or is a folder, check other file system
@@ -149,7 +152,7 @@ public class GaeFileSystemManager extends StandardFileSystemManager {
                 } else {
                     localFile = super.resolveFile( baseFile, "file://" + uri, opts );
                 }
-                if ( localFile.exists() && ( localFile.getType().hasContent() ) ) {
+                if ( isFile( localFile ) ) {
                     return localFile; // return existing local files
                 }
             } else {
@@ -159,7 +162,7 @@ public class GaeFileSystemManager extends StandardFileSystemManager {
         } else {
             // neither scheme nor baseFile specified, check local first
             localFile = super.resolveFile( null, uri, opts );
-            if ( localFile.exists() && ( localFile.getType().hasContent() ) ) {
+            if ( isFile( localFile ) ) {
                 return localFile; // return existing local files
             }
             // localFile doesn't exist or is a folder, check GAE file system
@@ -175,13 +178,48 @@ public class GaeFileSystemManager extends StandardFileSystemManager {
         }
         
         // never return local folders
-        if ( localFile.exists() ) {
+        if ( getType( localFile ).hasChildren() ) {
             gaeFile.createFolder(); // create GAE "shadow" for existing local folder
             return gaeFile;
         }
         return gaeFile; // neither local nor GAE file/folder exists
     }
 
+    /**
+     * Returns true if the specified file exists and has content.
+     */
+    private boolean isFile( FileObject fileObject ) throws FileSystemException {
+        return getType( fileObject ).hasContent();
+    }
+
+    /**
+     * Returns the type of the specified file. The types of local files within
+     * the webapp root are read from the local file index, which avoids checking
+     * the local file system.
+     */
+    private FileType getType( FileObject fileObject ) throws FileSystemException {
+        if ( fileObject.getName().getScheme().equals( "file" ) ) {
+            FileType type = getLocalFileIndex().getType( fileObject.getName() );
+            if ( type != null ) {
+                return type;
+            }
+        }
+        return ( fileObject.exists() ? fileObject.getType() : FileType.IMAGINARY );
+    }
+
+    /**
+     * Returns the index of the local files within the webapp root, which is
+     * built when first needed by the Combined Local option.
+     */
+    synchronized GaeLocalFileIndex getLocalFileIndex() throws FileSystemException {
+        if ( localFileIndex == null ) {
+            localFileIndex = new GaeLocalFileIndex(
+                        GaeFileNameParser.getRootPath( rootObject.getName() ) );
+            GaeVFS.log.info( "Indexed " + localFileIndex.size() + " local files" );
+        }
+        return localFileIndex;
+    }
+
     private boolean isSchemeSpecified( String uri ) {
         String scheme = UriParser.extractScheme( uri );
         return ( ( scheme != null ) && super.hasProvider( scheme ) );
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2009 New Atlanta Communications, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.newatlanta.appengine.vfs.provider;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.vfs.FileName;
+import org.apache.commons.vfs.FileObject;
+import org.apache.commons.vfs.FileSystem;
+import org.apache.commons.vfs.FileSystemException;
+import org.apache.commons.vfs.cache.AbstractFilesCache;
+
+/**
+ * A concurrent cache of file objects, bounded by the number of files cached and
+ * by an estimate of the memory they use. Lookups don't lock; when the cache
+ * exceeds either bound, the least-recently used tenth of the files is evicted.
+ * <p>
+ * Instead of refreshing files every time they're resolved (the Commons VFS
+ * <code>ON_RESOLVE</code> cache strategy), files resolved via
+ * {@link #resolveFile(FileSystem, FileName)} are trusted for a time-to-live
+ * (see {@link GaeVFS#setFilesCacheTtl(int)}); after that, their metadata
+ * versions are checked in memcache and they're refreshed only if another
+ * instance (or this one) changed their metadata since it was read.
+ *
+ * @author <a href="mailto:vbonfanti@gmail.com">Vince Bonfanti</a>
+ */
+class GaeFilesCache extends AbstractFilesCache {
+
+    private static final int ENTRY_OVERHEAD = 1024; // approximate bytes per file
+
+    private final ConcurrentMap<FileSystem, ConcurrentMap<FileName, Entry>> fileSystemCaches =
+                    new ConcurrentHashMap<FileSystem, ConcurrentMap<FileName, Entry>>();
+
+    private final AtomicLong numFiles = new AtomicLong();
+    private final AtomicLong cachedBytes = new AtomicLong();
+
+    public void putFile( FileObject file ) {
+        Entry entry = new Entry( file );
+        Entry old = getFileSystemCache( file.getFileSystem() ).put( file.getName(), entry );
+        if ( old != null ) {
+            removed( old );
+        }
+        numFiles.incrementAndGet();
+        cachedBytes.addAndGet( entry.size );
+        if ( ( numFiles.get() > GaeVFS.getFilesCacheSize() ) ||
+                ( cachedBytes.get() > GaeVFS.getFilesCacheMemory() ) ) {
+            evict();
+        }
+    }
+
+    public FileObject getFile( FileSystem fileSystem, FileName name ) {
+        Entry entry = getFileSystemCache( fileSystem ).get( name );
+        if ( entry == null ) {
+            return null;
+        }
+        entry.lastAccessed = System.currentTimeMillis();
+        return entry.file;
+    }
+
+    /**
+     * Returns the cached file, or <code>null</code> if it's not cached. If the
+     * file was last checked more than the time-to-live ago, it's refreshed first
+     * unless its metadata is known to be current.
+     */
+    FileObject resolveFile( FileSystem fileSystem, FileName name )
+            throws FileSystemException {
+        Entry entry = getFileSystemCache( fileSystem ).get( name );
+        if ( entry == null ) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        entry.lastAccessed = now;
+        if ( ( now - entry.lastRefreshed ) >= GaeVFS.getFilesCacheTtl() * 1000L ) {
+            entry.lastRefreshed = now;
+            if ( !( entry.file instanceof GaeFileObject ) ||
+                    !((GaeFileObject)entry.file).isMetaDataCurrent() ) {
+                entry.file.refresh();
+            }
+        }
+        return entry.file;
+    }
+
+    public void removeFile( FileSystem fileSystem, FileName name ) {
+        Entry old = getFileSystemCache( fileSystem ).remove( name );
+        if ( old != null ) {
+            removed( old );
+        }
+    }
+
+    public void clear( FileSystem fileSystem ) {
+        ConcurrentMap<FileName, Entry> files = fileSystemCaches.remove( fileSystem );
+        if ( files != null ) {
+            for ( Entry entry : files.values() ) {
+                removed( entry );
+            }
+        }
+    }
+
+    public void close() {
+        super.close();
+        fileSystemCaches.clear();
+        numFiles.set( 0 );
+        cachedBytes.set( 0 );
+    }
+
+    private ConcurrentMap<FileName, Entry> getFileSystemCache( FileSystem fileSystem ) {
+        ConcurrentMap<FileName, Entry> files = fileSystemCaches.get( fileSystem );
+        if ( files == null ) {
+            files = new ConcurrentHashMap<FileName, Entry>();
+            ConcurrentMap<FileName, Entry> existing = fileSystemCaches.putIfAbsent( fileSystem, files );
+            if ( existing != null ) {
+                files = existing;
+            }
+        }
+        return files;
+    }
+
+    private void removed( Entry entry ) {
+        numFiles.decrementAndGet();
+        cachedBytes.addAndGet( -entry.size );
+    }
+
+    /**
+     * Evicts the least-recently used tenth of the cached files. Evicting in bulk
+     * amortizes the cost of finding the least-recently used files.
+     */
+    private synchronized void evict() {
+        if ( ( numFiles.get() <= GaeVFS.getFilesCacheSize() ) &&
+                ( cachedBytes.get() <= GaeVFS.getFilesCacheMemory() ) ) {
+            return; // another thread already evicted
+        }
+        List<Entry> entries = new ArrayList<Entry>();
+        for ( ConcurrentMap<FileName, Entry> files : fileSystemCaches.values() ) {
+            for ( Entry entry : files.values() ) {
+                // sort on a snapshot, since lastAccessed is updated concurrently
+                entry.sortTime = entry.lastAccessed;
+                entries.add( entry );
+            }
+        }
+        Collections.sort( entries, new Comparator<Entry>() {
+            public int compare( Entry e1, Entry e2 ) {
+                return ( e1.sortTime < e2.sortTime ? -1 :
+                            ( e1.sortTime > e2.sortTime ? 1 : 0 ) );
+            }
+        } );
+        int numEvict = Math.max( entries.size() / 10, 1 );
+        for ( int i = 0; ( i < numEvict ) && ( i < entries.size() ); i++ ) {
+            Entry entry = entries.get( i );
+            if ( getFileSystemCache( entry.file.getFileSystem() ).remove(
+                                            entry.file.getName(), entry ) ) {
+                removed( entry );
+            }
+        }
+    }
+
+    private static class Entry {
+
+        private final FileObject file;
+        private final long size; // approximate bytes
+        private volatile long lastAccessed;
+        private volatile long lastRefreshed;
+        private long sortTime; // used by evict()
+
+        private Entry( FileObject file ) {
+            this.file = file;
+            size = ENTRY_OVERHEAD + ( file.getName().getURI().length() * 2 );
+            lastAccessed = lastRefreshed = System.currentTimeMillis();
+        }
+    }
+}
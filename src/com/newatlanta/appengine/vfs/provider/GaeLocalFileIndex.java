@@ -0,0 +1,101 @@
+/*
+ * Copyright 2009 New Atlanta Communications, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.newatlanta.appengine.vfs.provider;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.vfs.FileName;
+import org.apache.commons.vfs.FileType;
+
+/**
+ * An immutable index of the local files and folders within the webapp root,
+ * built once by walking the local file system. The webapp (WAR) contents never
+ * change for the life of an instance, so the Combined Local option uses this
+ * index to answer whether local files and folders exist, rather than checking
+ * the local file system each time.
+ * <p>
+ * Paths are relative to the webapp root, like the paths of GaeVFS file names
+ * (the webapp root itself is "/").
+ *
+ * @author <a href="mailto:vbonfanti@gmail.com">Vince Bonfanti</a>
+ */
+class GaeLocalFileIndex {
+
+    private final String rootPath; // normalized, as in GaeVFS root URIs
+    private final Map<String, FileType> types;
+
+    GaeLocalFileIndex( String rootPath ) {
+        this.rootPath = rootPath;
+        Map<String, FileType> index = new HashMap<String, FileType>();
+        File root = new File( rootPath );
+        if ( root.isDirectory() ) {
+            index.put( "/", FileType.FOLDER );
+            addChildren( index, root, "" );
+        }
+        types = Collections.unmodifiableMap( index );
+    }
+
+    private static void addChildren( Map<String, FileType> index, File dir, String path ) {
+        File[] children = dir.listFiles();
+        if ( children == null ) {
+            return;
+        }
+        for ( File child : children ) {
+            String childPath = path + "/" + child.getName();
+            if ( child.isDirectory() ) {
+                index.put( childPath, FileType.FOLDER );
+                addChildren( index, child, childPath );
+            } else {
+                index.put( childPath, FileType.FILE );
+            }
+        }
+    }
+
+    /**
+     * Returns the type of the local file or folder with the specified path
+     * relative to the webapp root; {@link FileType#IMAGINARY} if it doesn't exist.
+     */
+    FileType getType( String path ) {
+        FileType type = types.get( path );
+        return ( type != null ? type : FileType.IMAGINARY );
+    }
+
+    /**
+     * Returns the type of the specified local ("file://") file or folder, or
+     * <code>null</code> if it's not within the webapp root, in which case the
+     * local file system must be checked.
+     */
+    FileType getType( FileName localName ) {
+        String path = localName.getPath();
+        if ( path.equals( rootPath ) ) {
+            return getType( "/" );
+        }
+        if ( path.startsWith( rootPath ) && ( path.charAt( rootPath.length() ) == '/' ) ) {
+            return getType( path.substring( rootPath.length() ) );
+        }
+        return null;
+    }
+
+    /**
+     * Returns the number of local files and folders indexed.
+     */
+    int size() {
+        return types.size();
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2009 New Atlanta Communications, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.newatlanta.appengine.vfs.provider;
+
+import static com.google.appengine.api.memcache.MemcacheServiceFactory.getMemcacheService;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.newatlanta.appengine.datastore.VersionCounter;
+
+/**
+ * Per-file metadata version counters kept in memcache, so that an instance can
+ * tell whether the metadata it has cached was changed by any instance since it
+ * was read, without reading the metadata again.
+ * <p>
+ * The version is incremented after every write of the metadata. If a counter
+ * is evicted from memcache (or deleted), it's re-initialized to a new value
+ * (see {@link VersionCounter}), so that cached metadata is never mistaken for
+ * current. A <code>null</code> version means the version is unknown, and the
+ * metadata must be assumed to have changed.
+ *
+ * @author <a href="mailto:vbonfanti@gmail.com">Vince Bonfanti</a>
+ */
+class GaeMetaDataVersions {
+
+    private static final String VERSION_PREFIX = "GaeFileObject.version:";
+
+    /**
+     * Returns the current metadata version of the specified file.
+     */
+    Long getVersion( String path ) {
+        return VersionCounter.get( VERSION_PREFIX + path );
+    }
+
+    /**
+     * Returns the current metadata versions of the specified files with a single
+     * memcache call; files whose versions aren't known are omitted.
+     */
+    @SuppressWarnings("unchecked")
+    Map<String, Long> getVersions( Collection<String> paths ) {
+        List<String> keys = new ArrayList<String>( paths.size() );
+        for ( String path : paths ) {
+            keys.add( VERSION_PREFIX + path );
+        }
+        Map<String, Long> versions = new HashMap<String, Long>();
+        Map<Object, Object> values = getMemcacheService().getAll( (Collection)keys );
+        if ( values != null ) {
+            for ( Map.Entry<Object, Object> entry : values.entrySet() ) {
+                if ( entry.getValue() instanceof Number ) {
+                    versions.put( entry.getKey().toString().substring( VERSION_PREFIX.length() ),
+                                    ((Number)entry.getValue()).longValue() );
+                }
+            }
+        }
+        return versions;
+    }
+
+    /**
+     * Must be invoked after the metadata of the specified file is written or
+     * deleted. Returns the new version.
+     */
+    Long increment( String path ) {
+        return VersionCounter.increment( VERSION_PREFIX + path );
+    }
+
+    /**
+     * Invalidates the versions of the specified files with a single memcache
+     * call; intended for bulk deletes.
+     */
+    @SuppressWarnings("unchecked")
+    void invalidate( Collection<String> paths ) {
+        List<String> keys = new ArrayList<String>( paths.size() );
+        for ( String path : paths ) {
+            keys.add( VERSION_PREFIX + path );
+        }
+        getMemcacheService().deleteAll( (Collection)keys );
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2009 New Atlanta Communications, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.newatlanta.appengine.vfs.provider;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An in-instance LRU cache of GaeVFS paths that are known not to exist, so that
+ * repeated lookups of missing files (such as requests for missing URLs, or
+ * existence checks before creating a file) don't read the datastore each time.
+ * <p>
+ * Paths are removed when files are created by this instance. Files created by
+ * other instances can't be seen until the cache entry expires, so entries are
+ * kept for a short time only (see {@link GaeVFS#setMissingFileCacheTtl(int)}).
+ *
+ * @author <a href="mailto:vbonfanti@gmail.com">Vince Bonfanti</a>
+ */
+class GaeMissingFileCache {
+
+    // path --> expiration time in milliseconds
+    private final Map<String, Long> expirations =
+                    new LinkedHashMap<String, Long>( 16, 0.75f, true );
+
+    /**
+     * Returns true if the path is cached as missing and hasn't expired.
+     */
+    synchronized boolean isMissing( String path ) {
+        Long expiration = expirations.get( path );
+        if ( expiration == null ) {
+            return false;
+        }
+        if ( expiration.longValue() <= System.currentTimeMillis() ) {
+            expirations.remove( path );
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Caches the path as missing, then evicts least-recently used paths until
+     * the cache is within its size limit.
+     */
+    synchronized void putMissing( String path ) {
+        int maxSize = GaeVFS.getMissingFileCacheSize();
+        if ( ( maxSize <= 0 ) || ( GaeVFS.getMissingFileCacheTtl() <= 0 ) ) {
+            return;
+        }
+        expirations.put( path, Long.valueOf( System.currentTimeMillis() +
+                                    GaeVFS.getMissingFileCacheTtl() * 1000L ) );
+        Iterator<Long> iter = expirations.values().iterator();
+        while ( ( expirations.size() > maxSize ) && iter.hasNext() ) {
+            iter.next();
+            iter.remove();
+        }
+    }
+
+    /**
+     * Must be invoked when the file is created.
+     */
+    synchronized void remove( String path ) {
+        expirations.remove( path );
+    }
+
+    synchronized void clear() {
+        expirations.clear();
+    }
+}
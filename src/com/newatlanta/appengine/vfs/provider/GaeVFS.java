@@ -48,6 +48,16 @@ public class GaeVFS {
     public static final int MIN_BLOCK_SIZE = 2; // in units of KB
     
     private static final int DEFAULT_BLOCK_SIZE = 1024 * 128; // 128KB
+    private static final int DEFAULT_READ_AHEAD_BLOCKS = 8;
+    private static final int DEFAULT_WRITE_BACK_BLOCKS = 0; // disabled
+    private static final int DEFAULT_BLOCK_CACHE_SIZE = 4096; // KB
+    private static final int DEFAULT_BLOCK_CACHE_TTL = 1; // seconds
+    private static final int DEFAULT_UNCACHED_BLOCK_SIZE = 512; // KB
+    private static final int DEFAULT_MISSING_FILE_CACHE_SIZE = 1000; // paths
+    private static final int DEFAULT_MISSING_FILE_CACHE_TTL = 10; // seconds
+    private static final int DEFAULT_FILES_CACHE_SIZE = 1000; // files
+    private static final int DEFAULT_FILES_CACHE_MEMORY = 2048; // KB
+    private static final int DEFAULT_FILES_CACHE_TTL = 0; // seconds
     
     static {
         // GAE doesn't set these values; Commons VFS will fail to initialize if
@@ -58,6 +68,17 @@ public class GaeVFS {
 
     private static GaeFileSystemManager fsManager;
     private static int blockSize = DEFAULT_BLOCK_SIZE;
+    private static int readAheadBlocks = DEFAULT_READ_AHEAD_BLOCKS;
+    private static int writeBackBlocks = DEFAULT_WRITE_BACK_BLOCKS;
+    private static int sizeUpdateThreshold = 0; // KB; write metadata on every change
+    private static long blockCacheSize = DEFAULT_BLOCK_CACHE_SIZE * 1024L;
+    private static int blockCacheTtl = DEFAULT_BLOCK_CACHE_TTL;
+    private static int uncachedBlockSize = DEFAULT_UNCACHED_BLOCK_SIZE;
+    private static int missingFileCacheSize = DEFAULT_MISSING_FILE_CACHE_SIZE;
+    private static int missingFileCacheTtl = DEFAULT_MISSING_FILE_CACHE_TTL;
+    private static int filesCacheSize = DEFAULT_FILES_CACHE_SIZE;
+    private static long filesCacheMemory = DEFAULT_FILES_CACHE_MEMORY * 1024L;
+    private static int filesCacheTtl = DEFAULT_FILES_CACHE_TTL;
     
     private GaeVFS() {
     }
@@ -134,6 +155,301 @@ public class GaeVFS {
         return size;
     }
 
+    /**
+     * Gets the maximum number of blocks read ahead by file channels that detect
+     * sequential reads.
+     * 
+     * @return The current read-ahead setting, in number of blocks.
+     */
+    public static int getReadAheadBlocks() {
+        return readAheadBlocks;
+    }
+    
+    /**
+     * Sets the maximum number of blocks read ahead by file channels that detect
+     * sequential reads. When a read-only channel reads the block immediately
+     * following the previous one, it gets up to this many blocks in a single
+     * datastore (or memcache) bulk get and holds them until they're read. The
+     * actual number of blocks is also limited by the maximum size of a bulk get
+     * operation. The default is 8 blocks.
+     * 
+     * @param blocks The number of blocks to read ahead; 0 or 1 disables read-ahead.
+     */
+    public static void setReadAheadBlocks( int blocks ) {
+        if ( blocks < 0 ) {
+            throw new IllegalArgumentException( "invalid read-ahead blocks: " + blocks );
+        }
+        readAheadBlocks = blocks;
+    }
+
+    /**
+     * Gets the maximum number of modified blocks held by file channels before
+     * writing them to the datastore.
+     * 
+     * @return The current write-back setting, in number of blocks.
+     */
+    public static int getWriteBackBlocks() {
+        return writeBackBlocks;
+    }
+    
+    /**
+     * Sets the maximum number of modified blocks held by file channels before
+     * writing them to the datastore. Modified blocks are written, together with
+     * the file metadata, in a single bulk put when this many have accumulated,
+     * and when the channel is forced or closed. The actual number of blocks is
+     * also limited by the maximum size of a bulk put operation.
+     * <p>
+     * Write-back is disabled by default. When enabled, modified blocks are lost
+     * if the request ends before the channel is closed, and other channels open
+     * on the same file within this instance see the new file size before the
+     * blocks are written.
+     * 
+     * @param blocks The number of blocks to hold; 0 or 1 disables write-back, so
+     * that each modified block is written individually.
+     */
+    public static void setWriteBackBlocks( int blocks ) {
+        if ( blocks < 0 ) {
+            throw new IllegalArgumentException( "invalid write-back blocks: " + blocks );
+        }
+        writeBackBlocks = blocks;
+    }
+
+    /**
+     * Gets the number of bytes a file channel may extend a file before writing
+     * the updated file size to the datastore.
+     * 
+     * @return The current threshold in units of K (1024) bytes.
+     */
+    public static int getSizeUpdateThreshold() {
+        return sizeUpdateThreshold;
+    }
+    
+    /**
+     * Sets the number of bytes a file channel may extend a file before writing
+     * the updated file size to the datastore. Until then, the file size is only
+     * updated in memory, and is written when the channel is forced (with
+     * metadata) or closed. This setting has no effect while write-back is enabled
+     * (see {@link #setWriteBackBlocks(int)}), because the file size is then only
+     * written together with the modified blocks. The default is 0, which writes
+     * the file size every time it changes.
+     * 
+     * @param size The threshold in units of K (1024) bytes.
+     */
+    public static void setSizeUpdateThreshold( int size ) {
+        if ( size < 0 ) {
+            throw new IllegalArgumentException( "invalid size update threshold: " + size );
+        }
+        sizeUpdateThreshold = size;
+    }
+
+    /**
+     * Gets the maximum number of bytes of file blocks cached within this instance.
+     * 
+     * @return The current block cache size as an absolute number of bytes.
+     */
+    public static long getBlockCacheSize() {
+        return blockCacheSize;
+    }
+    
+    /**
+     * Sets the maximum number of bytes of file blocks cached within this instance.
+     * Recently read blocks are kept in an in-instance LRU cache in front of
+     * memcache, so that repeated reads of popular files don't fetch and
+     * deserialize the same blocks again. Cached blocks are invalidated across
+     * all instances whenever a file is written. The default is 4096KB (4MB).
+     * 
+     * @param size The cache size in units of K (1024) bytes; 0 disables the cache.
+     */
+    public static void setBlockCacheSize( int size ) {
+        if ( size < 0 ) {
+            throw new IllegalArgumentException( "invalid block cache size: " + size );
+        }
+        blockCacheSize = size * 1024L;
+        if ( size == 0 ) {
+            GaeFileObject.clearBlockCache();
+        }
+    }
+
+    /**
+     * Gets the number of seconds file versions are trusted by the block cache.
+     * 
+     * @return The time-to-live in seconds.
+     */
+    public static int getBlockCacheTtl() {
+        return blockCacheTtl;
+    }
+
+    /**
+     * Sets the number of seconds file versions are trusted by the block cache.
+     * Blocks are cached by file version, which is read from memcache at most
+     * once per time-to-live for each file, so that reads of a hot file are
+     * served from instance memory alone. Writes by this instance are seen
+     * immediately; writes by other instances may not be seen until the version
+     * expires. The default is 1 second; 0 reads the version for every block read.
+     * 
+     * @param ttl The time-to-live in seconds.
+     */
+    public static void setBlockCacheTtl( int ttl ) {
+        if ( ttl < 0 ) {
+            throw new IllegalArgumentException( "invalid block cache ttl: " + ttl );
+        }
+        blockCacheTtl = ttl;
+    }
+
+    /**
+     * Gets the smallest block size of files whose blocks are not cached in
+     * memcache.
+     * 
+     * @return The current uncached block size in units of K (1024) bytes.
+     */
+    public static int getUncachedBlockSize() {
+        return uncachedBlockSize;
+    }
+
+    /**
+     * Sets the smallest block size of files whose blocks are not cached in
+     * memcache, so that large blocks don't evict the smaller metadata entities of
+     * other files; they're still kept in the in-instance block cache. Blocks of
+     * files with smaller block sizes are cached in memcache. This should only be
+     * set when the application is initialized. The default is 512KB.
+     * 
+     * @param size The block size in units of K (1024) bytes; 0 caches all blocks
+     * in memcache.
+     */
+    public static void setUncachedBlockSize( int size ) {
+        if ( size < 0 ) {
+            throw new IllegalArgumentException( "invalid uncached block size: " + size );
+        }
+        uncachedBlockSize = size;
+    }
+
+    /**
+     * Gets the maximum number of missing file paths cached within this instance.
+     * 
+     * @return The current missing file cache size as a number of paths.
+     */
+    public static int getMissingFileCacheSize() {
+        return missingFileCacheSize;
+    }
+
+    /**
+     * Sets the maximum number of missing file paths cached within this instance.
+     * Lookups of files that don't exist are remembered, so that repeated lookups
+     * of the same missing files don't read the datastore. Paths are removed from
+     * the cache when files are created by this instance. The default is 1000.
+     * 
+     * @param size The cache size as a number of paths; 0 disables the cache.
+     */
+    public static void setMissingFileCacheSize( int size ) {
+        if ( size < 0 ) {
+            throw new IllegalArgumentException( "invalid missing file cache size: " + size );
+        }
+        missingFileCacheSize = size;
+        if ( size == 0 ) {
+            GaeFileObject.clearMissingFileCache();
+        }
+    }
+
+    /**
+     * Gets the number of seconds missing file paths are cached.
+     * 
+     * @return The current missing file cache time-to-live in seconds.
+     */
+    public static int getMissingFileCacheTtl() {
+        return missingFileCacheTtl;
+    }
+
+    /**
+     * Sets the number of seconds missing file paths are cached. This is the
+     * longest time it may take for this instance to see a file created by
+     * another instance, if it looked for the file before it was created. The
+     * default is 10 seconds.
+     * 
+     * @param ttl The time-to-live in seconds; 0 disables the cache.
+     */
+    public static void setMissingFileCacheTtl( int ttl ) {
+        if ( ttl < 0 ) {
+            throw new IllegalArgumentException( "invalid missing file cache ttl: " + ttl );
+        }
+        missingFileCacheTtl = ttl;
+        if ( ttl == 0 ) {
+            GaeFileObject.clearMissingFileCache();
+        }
+    }
+
+    /**
+     * Gets the maximum number of file objects cached within this instance.
+     * 
+     * @return The current files cache size as a number of files.
+     */
+    public static int getFilesCacheSize() {
+        return filesCacheSize;
+    }
+
+    /**
+     * Sets the maximum number of file objects cached within this instance. When
+     * either this limit or the memory limit (see {@link #setFilesCacheMemory(int)})
+     * is exceeded, the least-recently used files are evicted. The default is 1000.
+     * 
+     * @param size The cache size as a number of files.
+     */
+    public static void setFilesCacheSize( int size ) {
+        if ( size <= 0 ) {
+            throw new IllegalArgumentException( "invalid files cache size: " + size );
+        }
+        filesCacheSize = size;
+    }
+
+    /**
+     * Gets the approximate maximum memory used by file objects cached within this
+     * instance.
+     * 
+     * @return The current files cache memory limit as an absolute number of bytes.
+     */
+    public static long getFilesCacheMemory() {
+        return filesCacheMemory;
+    }
+
+    /**
+     * Sets the approximate maximum memory used by file objects cached within this
+     * instance. The default is 2048KB (2MB).
+     * 
+     * @param size The memory limit in units of K (1024) bytes.
+     */
+    public static void setFilesCacheMemory( int size ) {
+        if ( size <= 0 ) {
+            throw new IllegalArgumentException( "invalid files cache memory: " + size );
+        }
+        filesCacheMemory = size * 1024L;
+    }
+
+    /**
+     * Gets the number of seconds cached file objects are trusted without checking
+     * their metadata versions.
+     * 
+     * @return The current files cache time-to-live in seconds.
+     */
+    public static int getFilesCacheTtl() {
+        return filesCacheTtl;
+    }
+
+    /**
+     * Sets the number of seconds cached file objects are trusted without checking
+     * their metadata versions. When a cached file is resolved and it was last
+     * checked longer ago than this, its metadata version is read from memcache,
+     * and it's refreshed only if its metadata was changed (by this or another
+     * instance) since it was read. The default is 0, which checks the version
+     * every time a cached file is resolved.
+     * 
+     * @param ttl The time-to-live in seconds.
+     */
+    public static void setFilesCacheTtl( int ttl ) {
+        if ( ttl < 0 ) {
+            throw new IllegalArgumentException( "invalid files cache ttl: " + ttl );
+        }
+        filesCacheTtl = ttl;
+    }
+
     /**
      * Locates a file by name. A convenience method equivalent to 
      * <code>GaeVFS.getManager().resolveFile(name)</code>. The file name URI format
@@ -186,6 +502,7 @@ public class GaeVFS {
             fsManager.close();
             fsManager = null;
         }
+        GaeFileObject.clearMissingFileCache();
         releaseAllLocks();
     }
 }
\ No newline at end of file
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2009 New Atlanta Communications, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.newatlanta.appengine.junit;
+
+import java.util.concurrent.Future;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.ApiConfig;
+import com.google.apphosting.api.ApiProxy.ApiProxyException;
+import com.google.apphosting.api.ApiProxy.Delegate;
+import com.google.apphosting.api.ApiProxy.Environment;
+import com.google.apphosting.api.ApiProxy.LogRecord;
+
+/**
+ * Counts the API calls (datastore, memcache, etc.) made while it's installed.
+ * Always uninstall it before the test ends, because the test cases expect the
+ * local delegate to be installed when they're torn down.
+ */
+public class CountingDelegate implements Delegate<Environment> {
+
+    private final Delegate<Environment> delegate;
+    private int calls;
+
+    private CountingDelegate( Delegate<Environment> delegate ) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Installs a counting delegate in front of the current delegate.
+     */
+    public static CountingDelegate install() {
+        CountingDelegate counter = new CountingDelegate( ApiProxy.getDelegate() );
+        ApiProxy.setDelegate( counter );
+        return counter;
+    }
+
+    /**
+     * Restores the previous delegate. Returns the number of calls made.
+     */
+    public int uninstall() {
+        ApiProxy.setDelegate( delegate );
+        return calls;
+    }
+
+    public byte[] makeSyncCall( Environment env, String packageName, String methodName,
+            byte[] request ) throws ApiProxyException {
+        calls++;
+        return delegate.makeSyncCall( env, packageName, methodName, request );
+    }
+
+    public Future<byte[]> makeAsyncCall( Environment env, String packageName,
+            String methodName, byte[] request, ApiConfig apiConfig ) {
+        calls++;
+        return delegate.makeAsyncCall( env, packageName, methodName, request, apiConfig );
+    }
+
+    public void log( Environment env, LogRecord logRecord ) {
+        delegate.log( env, logRecord );
+    }
+}
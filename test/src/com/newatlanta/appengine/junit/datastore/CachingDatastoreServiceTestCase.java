@@ -1,5 +1,17 @@
 package com.newatlanta.appengine.junit.datastore;
 
+import static com.google.appengine.api.datastore.FetchOptions.Builder.withLimit;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
 import org.junit.Test;
 
 import com.google.appengine.api.datastore.DatastoreService;
@@ -7,9 +19,17 @@ import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.memcache.MemcacheService;
 import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.newatlanta.appengine.datastore.CachedPreparedQuery;
 import com.newatlanta.appengine.datastore.CachingDatastoreService;
 import com.newatlanta.appengine.datastore.CachingDatastoreService.CacheOption;
+import com.newatlanta.appengine.datastore.VersionCounter;
 import com.newatlanta.appengine.junit.vfs.gae.GaeVfsTestCase;
 
 public class CachingDatastoreServiceTestCase extends GaeVfsTestCase {
@@ -27,6 +47,265 @@ public class CachingDatastoreServiceTestCase extends GaeVfsTestCase {
         entity = DatastoreServiceFactory.getDatastoreService().get( key );
     }
 
+    @Test
+    public void testPutCoalesced() throws EntityNotFoundException {
+        // without the write-behind task, entities are written through
+        Entity entity = new Entity( "test", "coalesced" );
+        entity.setProperty( "test", "test" );
+        DatastoreService datastore = new CachingDatastoreService(
+                                            CacheOption.WRITE_BEHIND_COALESCED );
+        Key key = datastore.put( entity );
+        assertTrue( MemcacheServiceFactory.getMemcacheService().contains( key ) );
+        DatastoreServiceFactory.getDatastoreService().get( key );
+        
+        try {
+            CachingDatastoreService.setCoalescingWindow( -1 );
+            fail( "expected IllegalArgumentException" );
+        } catch ( IllegalArgumentException e ) {
+        }
+    }
+    
+    @Test
+    public void testDrainCoalesced() throws Exception {
+        // the write-behind queue isn't configured in the test environment, so
+        // add the pending keys as coalesced write-behind puts do while the
+        // watchdog is alive
+        MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+        memcache.put( "CachingDatastoreService.watchdog", "testDrainCoalesced" );
+        int numKeys = 600; // more than a single drain writes
+        for ( int i = 0; i < numKeys; i++ ) {
+            Entity entity = new Entity( "drain", "e" + i );
+            entity.setProperty( "test", "test" );
+            memcache.put( entity.getKey(), entity );
+            memcache.put( "CachingDatastoreService.pending:" + i, entity.getKey() );
+        }
+        memcache.put( "CachingDatastoreService.pending.head", Long.valueOf( 0 ) );
+        memcache.put( "CachingDatastoreService.pending.tail", Long.valueOf( numKeys ) );
+        
+        // each drain writes up to 500 entities and advances the head past them
+        CachingDatastoreService servlet = new CachingDatastoreService();
+        servlet.doGet( createDrainRequest(), createResponse() );
+        assertEquals( 500L, memcache.get( "CachingDatastoreService.pending.head" ) );
+        assertFalse( memcache.contains( "CachingDatastoreService.pending:499" ) );
+        assertTrue( memcache.contains( "CachingDatastoreService.pending:500" ) );
+        PreparedQuery query = DatastoreServiceFactory.getDatastoreService().prepare(
+                                                        new Query( "drain" ) );
+        assertEquals( 500, query.countEntities() );
+        
+        servlet.doGet( createDrainRequest(), createResponse() );
+        assertEquals( (long)numKeys, memcache.get( "CachingDatastoreService.pending.head" ) );
+        assertFalse( memcache.contains( "CachingDatastoreService.pending:" + ( numKeys - 1 ) ) );
+        assertEquals( numKeys, query.countEntities() );
+        
+        // a drain with no pending keys does nothing
+        servlet.doGet( createDrainRequest(), createResponse() );
+        assertEquals( numKeys, query.countEntities() );
+    }
+    
+    @Test
+    public void testPendingTailEvicted() throws Exception {
+        MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+        memcache.put( "CachingDatastoreService.watchdog", "testPendingTailEvicted" );
+        // the write-behind queue isn't configured, so simulate a queued drain task
+        memcache.put( "CachingDatastoreService.drain", null );
+        // the head survived an eviction of the tail
+        memcache.put( "CachingDatastoreService.pending.head", Long.valueOf( 1000 ) );
+        memcache.delete( "CachingDatastoreService.pending.tail" );
+        
+        Entity entity = new Entity( "drain", "evicted" );
+        entity.setProperty( "test", "test" );
+        Key key = new CachingDatastoreService( CacheOption.WRITE_BEHIND_COALESCED ).put( entity );
+        
+        // the head is realigned with the tail, and the key is pending
+        assertEquals( 0L, memcache.get( "CachingDatastoreService.pending.head" ) );
+        assertEquals( 1L, memcache.get( "CachingDatastoreService.pending.tail" ) );
+        assertEquals( key, memcache.get( "CachingDatastoreService.pending:0" ) );
+        try {
+            DatastoreServiceFactory.getDatastoreService().get( key );
+            fail( "expected EntityNotFoundException" );
+        } catch ( EntityNotFoundException e ) {
+        }
+        
+        new CachingDatastoreService().doGet( createDrainRequest(), createResponse() );
+        assertEquals( 1L, memcache.get( "CachingDatastoreService.pending.head" ) );
+        DatastoreServiceFactory.getDatastoreService().get( key );
+    }
+    
+    private static HttpServletRequest createDrainRequest() {
+        return (HttpServletRequest)Proxy.newProxyInstance(
+                HttpServletRequest.class.getClassLoader(),
+                new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+            public Object invoke( Object proxy, Method method, Object[] args ) {
+                if ( method.getName().equals( "getParameter" ) && "drain".equals( args[ 0 ] ) ) {
+                    return "CachingDatastoreService.drain";
+                }
+                return null;
+            }
+        } );
+    }
+    
+    private static HttpServletResponse createResponse() {
+        return (HttpServletResponse)Proxy.newProxyInstance(
+                HttpServletResponse.class.getClassLoader(),
+                new Class<?>[] { HttpServletResponse.class }, new InvocationHandler() {
+            public Object invoke( Object proxy, Method method, Object[] args ) {
+                return null; // sendError() is retried by the task queue
+            }
+        } );
+    }
+
+    @Test
+    public void testCachePolicy() throws EntityNotFoundException {
+        CachingDatastoreService datastore = new CachingDatastoreService( CacheOption.WRITE_THROUGH );
+        datastore.setCachePolicy( "uncached", CacheOption.NO_CACHE, null );
+        datastore.setCachePolicy( "block*", CacheOption.NO_CACHE, null );
+        datastore.setCachePolicy( "blockCached", CacheOption.WRITE_THROUGH, null );
+        
+        Key uncachedKey = datastore.put( new Entity( "uncached", "a" ) );
+        Key blockKey = datastore.put( new Entity( "block1", "b" ) );
+        Key cachedKey = datastore.put( new Entity( "blockCached", "c" ) );
+        assertFalse( MemcacheServiceFactory.getMemcacheService().contains( uncachedKey ) );
+        assertFalse( MemcacheServiceFactory.getMemcacheService().contains( blockKey ) );
+        assertTrue( MemcacheServiceFactory.getMemcacheService().contains( cachedKey ) );
+        
+        // entities with different policies are read and written together
+        List<Entity> entities = new ArrayList<Entity>();
+        entities.add( new Entity( "uncached", "d" ) );
+        entities.add( new Entity( "cached", "e" ) );
+        List<Key> keys = datastore.put( entities );
+        assertEquals( entities.get( 0 ).getKey(), keys.get( 0 ) );
+        assertFalse( MemcacheServiceFactory.getMemcacheService().contains( keys.get( 0 ) ) );
+        assertTrue( MemcacheServiceFactory.getMemcacheService().contains( keys.get( 1 ) ) );
+        keys.add( uncachedKey );
+        assertEquals( 3, datastore.get( keys ).size() );
+        assertEquals( blockKey, datastore.get( blockKey ).getKey() );
+        
+        // keys are returned in the order the entities were passed
+        entities.clear();
+        for ( int i = 0; i < 20; i++ ) {
+            entities.add( new Entity( "cached", "order" + ( ( i * 7 ) % 20 ) ) );
+        }
+        entities.add( entities.get( 0 ) );
+        keys = datastore.put( entities );
+        assertEquals( entities.size(), keys.size() );
+        for ( int i = 0; i < entities.size(); i++ ) {
+            assertEquals( entities.get( i ).getKey(), keys.get( i ) );
+        }
+    }
+
+    @Test
+    public void testQueryCaching() {
+        CachingDatastoreService datastore = new CachingDatastoreService()
+                                                .setQueryCaching( "queried", true );
+        for ( int i = 1; i <= 2; i++ ) {
+            Entity entity = new Entity( "queried", "q" + i );
+            entity.setProperty( "n", Long.valueOf( i ) );
+            datastore.put( entity );
+        }
+        Query query = new Query( "queried" ).addFilter( "n", FilterOperator.GREATER_THAN, 0 );
+        PreparedQuery preparedQuery = datastore.prepare( query );
+        assertTrue( preparedQuery instanceof CachedPreparedQuery );
+        assertEquals( 2, preparedQuery.countEntities() );
+        assertEquals( 2, preparedQuery.asList( withLimit( 10 ) ).size() );
+        assertEquals( "q1", preparedQuery.asList( withLimit( 1 ) ).get( 0 ).getKey().getName() );
+        
+        // writes that bypass the CachingDatastoreService aren't seen
+        Entity entity = new Entity( "queried", "q3" );
+        entity.setProperty( "n", Long.valueOf( 3 ) );
+        DatastoreServiceFactory.getDatastoreService().put( entity );
+        assertEquals( 2, datastore.prepare( query ).countEntities() );
+        
+        entity = new Entity( "queried", "q4" );
+        entity.setProperty( "n", Long.valueOf( 4 ) );
+        datastore.put( entity ); // invalidates the cached results
+        assertEquals( 4, datastore.prepare( query ).countEntities() );
+        datastore.delete( entity.getKey() );
+        assertEquals( 3, datastore.prepare( query ).asList( withLimit( 10 ) ).size() );
+    }
+
+    @Test
+    public void testQueryCachingTransaction() {
+        CachingDatastoreService datastore = new CachingDatastoreService()
+                                                .setQueryCaching( "queriedTxn", true );
+        Query query = new Query( "queriedTxn" ).addFilter( "n", FilterOperator.EQUAL, 1L );
+        assertEquals( 0, datastore.prepare( query ).countEntities() );
+        
+        Transaction txn = datastore.beginTransaction();
+        assertSame( txn, datastore.getCurrentTransaction() );
+        Entity entity = new Entity( "queriedTxn", "t1" );
+        entity.setProperty( "n", Long.valueOf( 1 ) );
+        datastore.put( txn, entity );
+        // a query before the commit caches the results without the entity
+        assertEquals( 0, datastore.prepare( query ).countEntities() );
+        txn.commit();
+        assertEquals( 1, datastore.prepare( query ).countEntities() );
+        
+        // filter values of different types with the same string representation
+        Query stringQuery = new Query( "queriedTxn" ).addFilter( "n", FilterOperator.EQUAL, "1" );
+        assertEquals( 0, datastore.prepare( stringQuery ).countEntities() );
+    }
+
+    @Test
+    public void testLocalCaching() throws EntityNotFoundException {
+        CachingDatastoreService datastore = new CachingDatastoreService( CacheOption.WRITE_THROUGH )
+                                                .setLocalCaching( "local", true );
+        try {
+            CachingDatastoreService.setLocalCacheTtl( 60000 );
+            Entity entity = new Entity( "local", "a" );
+            entity.setProperty( "v", Long.valueOf( 1 ) );
+            Key key = datastore.put( entity );
+            
+            // cached entities are copies
+            datastore.get( key ).setProperty( "v", Long.valueOf( 10 ) );
+            assertEquals( Long.valueOf( 1 ), datastore.get( key ).getProperty( "v" ) );
+            
+            // simulate another instance writing the entity
+            entity.setProperty( "v", Long.valueOf( 2 ) );
+            MemcacheServiceFactory.getMemcacheService().put( key, entity );
+            MemcacheServiceFactory.getMemcacheService().increment(
+                        "LocalEntityCache.stamp:" + KeyFactory.keyToString( key ), 1 );
+            assertEquals( Long.valueOf( 1 ), datastore.get( key ).getProperty( "v" ) );
+            
+            CachingDatastoreService.setLocalCacheTtl( 0 ); // check the stamp
+            assertEquals( Long.valueOf( 2 ), datastore.get( key ).getProperty( "v" ) );
+            assertEquals( 1, datastore.get( Arrays.asList( key ) ).size() );
+            
+            // a read before the commit caches the entity as of before the write
+            Transaction txn = datastore.beginTransaction();
+            entity.setProperty( "v", Long.valueOf( 3 ) );
+            datastore.put( txn, entity );
+            assertEquals( Long.valueOf( 2 ), datastore.get( key ).getProperty( "v" ) );
+            txn.commit();
+            assertEquals( Long.valueOf( 3 ), datastore.get( key ).getProperty( "v" ) );
+            
+            datastore.delete( key );
+            try {
+                datastore.get( key );
+                fail( "expected EntityNotFoundException" );
+            } catch ( EntityNotFoundException e ) {
+            }
+        } finally {
+            CachingDatastoreService.setLocalCacheTtl( 1000 );
+            CachingDatastoreService.clearLocalCache();
+        }
+    }
+
+    @Test
+    public void testVersionCounter() throws InterruptedException {
+        String key = "CachingDatastoreServiceTestCase.version";
+        long start = System.currentTimeMillis() * 1000;
+        Long version = VersionCounter.get( key );
+        assertTrue( version.longValue() >= start );
+        assertEquals( version, VersionCounter.get( key ) );
+        for ( int i = 0; i < 10; i++ ) {
+            VersionCounter.increment( key );
+        }
+        Thread.sleep( 2 ); // the counter is initialized per millisecond
+        // an evicted counter never restarts at a value it already had
+        MemcacheServiceFactory.getMemcacheService().delete( key );
+        assertTrue( VersionCounter.get( key ).longValue() > version.longValue() + 10 );
+    }
+
     @Test
     public void testPutIterableOfEntity() {
         fail( "Not yet implemented" );
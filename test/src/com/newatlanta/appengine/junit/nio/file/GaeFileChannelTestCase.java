@@ -21,9 +21,12 @@ import static com.newatlanta.repackaged.java.nio.file.StandardOpenOption.CREATE_
 import static com.newatlanta.repackaged.java.nio.file.StandardOpenOption.READ;
 import static com.newatlanta.repackaged.java.nio.file.StandardOpenOption.WRITE;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.Channels;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileLockInterruptionException;
 import java.nio.channels.NonReadableChannelException;
@@ -36,6 +39,7 @@ import org.junit.Test;
 
 import com.newatlanta.appengine.junit.vfs.gae.GaeVfsTestCase;
 import com.newatlanta.appengine.nio.channels.GaeFileChannel;
+import com.newatlanta.appengine.vfs.provider.GaeVFS;
 import com.newatlanta.repackaged.java.nio.channels.FileChannel;
 import com.newatlanta.repackaged.java.nio.channels.FileLock;
 import com.newatlanta.repackaged.java.nio.file.Path;
@@ -193,8 +197,43 @@ public class GaeFileChannelTestCase extends GaeVfsTestCase {
     }
 
     @Test
-    public void testReadByteBufferArrayIntInt() {
-        fail( "Not yet implemented" );
+    public void testReadByteBufferArrayIntInt() throws IOException {
+        Path filePath = Paths.get( "docs/scatterRead.txt" );
+        FileChannel fc = FileChannel.open( filePath, EnumSet.of( WRITE, CREATE_NEW ),
+                                                withBlockSize( 8 ) );
+        for ( int i = 0; i < 3; i++ ) {
+            fc.write( getByteBuffer( 1024 * 8, (byte)( 'A' + i ) ) );
+        }
+        fc.close();
+        
+        fc = FileChannel.open( filePath, READ );
+        ByteBuffer[] dsts = { ByteBuffer.allocate( 100 ), ByteBuffer.allocate( 1024 * 9 ),
+                              ByteBuffer.allocate( 0 ), ByteBuffer.allocate( 1024 * 20 ) };
+        assertEquals( 1024 * 8 * 3, fc.read( dsts, 0, dsts.length ) );
+        assertEquals( 0, dsts[ 0 ].remaining() );
+        assertEquals( 0, dsts[ 1 ].remaining() );
+        assertEquals( ( 1024 * 20 ) - ( ( 1024 * 15 ) - 100 ), dsts[ 3 ].remaining() );
+        assertEquals( 'A', dsts[ 0 ].get( 99 ) );
+        assertEquals( 'A', dsts[ 1 ].get( ( 1024 * 8 ) - 101 ) );
+        assertEquals( 'B', dsts[ 1 ].get( ( 1024 * 8 ) - 100 ) );
+        assertEquals( 'B', dsts[ 3 ].get( ( 1024 * 7 ) - 101 ) );
+        assertEquals( 'C', dsts[ 3 ].get( ( 1024 * 7 ) - 100 ) );
+        assertEquals( fc.size(), fc.position() );
+        assertEquals( -1, fc.read( dsts, 0, dsts.length ) );
+        
+        // offset and length select a subsequence of the buffers
+        fc.position( 1024 * 8 );
+        dsts[ 0 ].clear();
+        dsts[ 1 ].clear();
+        assertEquals( 100, fc.read( dsts, 0, 1 ) );
+        assertEquals( 'B', dsts[ 0 ].get( 0 ) );
+        assertEquals( 0, dsts[ 1 ].position() );
+        try {
+            fc.read( dsts, 2, 3 );
+            fail( "expected IndexOutOfBoundsException" );
+        } catch ( IndexOutOfBoundsException e ) {
+        }
+        fc.close();
     }
     
     @Test
@@ -202,6 +241,71 @@ public class GaeFileChannelTestCase extends GaeVfsTestCase {
         fail( "Not yet implemented" );
     }
     
+    @Test
+    public void testReadAhead() throws IOException {
+        Path filePath = Paths.get( "docs/readAhead.txt" );
+        FileChannel fc = FileChannel.open( filePath, EnumSet.of( WRITE, CREATE_NEW ),
+                                                withBlockSize( 8 ) );
+        // write 5 blocks plus a partial block, each filled with a different byte
+        for ( int i = 0; i < 6; i++ ) {
+            fc.write( getByteBuffer( i < 5 ? 1024 * 8 : 1024, (byte)( 'A' + i ) ) );
+        }
+        long size = fc.size();
+        assertEquals( ( 1024 * 8 * 5 ) + 1024, size );
+        fc.close();
+        
+        // sequential reads on a read-only channel trigger read-ahead
+        fc = FileChannel.open( filePath, READ );
+        ByteBuffer dst = ByteBuffer.allocate( 1024 * 3 );
+        long totalBytes = 0;
+        int bytesRead = 0;
+        while ( ( bytesRead = fc.read( (ByteBuffer)dst.clear() ) ) > 0 ) {
+            for ( int i = 0; i < bytesRead; i++ ) {
+                assertEquals( 'A' + ( ( totalBytes + i ) / ( 1024 * 8 ) ), dst.get( i ) );
+            }
+            totalBytes += bytesRead;
+        }
+        assertEquals( size, totalBytes );
+        
+        // non-sequential reads are served from the read-ahead window or datastore
+        fc.position( 1024 * 8 * 3 );
+        dst = ByteBuffer.allocate( 1 );
+        assertEquals( 1, fc.read( dst ) );
+        assertEquals( 'D', dst.get( 0 ) );
+        fc.position( 1024 * 8 );
+        assertEquals( 1, fc.read( (ByteBuffer)dst.clear() ) );
+        assertEquals( 'B', dst.get( 0 ) );
+        fc.close();
+    }
+    
+    
+    @Test
+    public void testBlockCache() throws IOException {
+        Path filePath = Paths.get( "docs/blockCache.txt" );
+        FileChannel fc = FileChannel.open( filePath, EnumSet.of( WRITE, CREATE_NEW ),
+                                                withBlockSize( 8 ) );
+        fc.write( getByteBuffer( 1024 * 16, (byte)'A' ) );
+        fc.close();
+        
+        // the first read caches the blocks, the second is served from the cache
+        ByteBuffer dst = ByteBuffer.allocate( 1024 * 16 );
+        for ( int i = 0; i < 2; i++ ) {
+            fc = FileChannel.open( filePath, READ );
+            assertEquals( dst.capacity(), fc.read( (ByteBuffer)dst.clear() ) );
+            assertEquals( 'A', dst.get( 1024 * 12 ) );
+            fc.close();
+        }
+        
+        // writing invalidates the cached blocks
+        fc = FileChannel.open( filePath, WRITE );
+        fc.write( getByteBuffer( 1024 * 16, (byte)'B' ), 0 );
+        fc.close();
+        fc = FileChannel.open( filePath, READ );
+        assertEquals( dst.capacity(), fc.read( (ByteBuffer)dst.clear() ) );
+        assertEquals( 'B', dst.get( 0 ) );
+        assertEquals( 'B', dst.get( 1024 * 12 ) );
+        fc.close();
+    }
     
     private ByteBuffer getByteBuffer( int size, byte b ) {
         byte[] barray = new byte[ size ];
@@ -336,14 +440,77 @@ public class GaeFileChannelTestCase extends GaeVfsTestCase {
     }
 
     @Test
-    public void testWriteByteBufferArrayIntInt() {
-        fail( "Not yet implemented" );
+    public void testWriteByteBufferArrayIntInt() throws IOException {
+        Path filePath = Paths.get( "docs/gatherWrite.txt" );
+        FileChannel fc = FileChannel.open( filePath, EnumSet.of( WRITE, CREATE_NEW ),
+                                                withBlockSize( 8 ) );
+        ByteBuffer[] srcs = { getByteBuffer( 100, (byte)'A' ),
+                              getByteBuffer( 1024 * 10, (byte)'B' ),
+                              getByteBuffer( 1024 * 8, (byte)'C' ) };
+        assertEquals( 100 + ( 1024 * 18 ), fc.write( srcs, 0, srcs.length ) );
+        for ( ByteBuffer src : srcs ) {
+            assertEquals( 0, src.remaining() );
+        }
+        assertEquals( 100 + ( 1024 * 18 ), fc.position() );
+        assertEquals( fc.position(), fc.size() );
+        
+        // overwrite existing blocks, skipping the first buffer
+        fc.position( 50 );
+        srcs[ 1 ] = getByteBuffer( 1024 * 8, (byte)'D' );
+        srcs[ 2 ].clear();
+        assertEquals( 1024 * 16, fc.write( srcs, 1, 2 ) );
+        assertEquals( 100 + ( 1024 * 18 ), fc.size() );
+        fc.close();
+        
+        fc = FileChannel.open( filePath, READ );
+        ByteBuffer dst = ByteBuffer.allocate( (int)fc.size() );
+        while ( fc.read( dst ) > 0 );
+        for ( int i = 0; i < dst.capacity(); i++ ) {
+            assertEquals( i < 50 ? 'A' : ( i < 50 + ( 1024 * 8 ) ? 'D' : 'C' ), dst.get( i ) );
+        }
+        fc.close();
     }
     
     @Test
     public void testWriteByteBufferLong() {
         fail( "Not yet implemented" );
     }
+    
+    @Test
+    public void testWriteBackDuplicate() throws IOException {
+        int writeBackBlocks = GaeVFS.getWriteBackBlocks();
+        GaeVFS.setWriteBackBlocks( 8 );
+        try {
+            Path filePath = Paths.get( "docs/writeBackDuplicate.txt" );
+            FileChannel fc = FileChannel.open( filePath, EnumSet.of( WRITE, CREATE_NEW ),
+                                                    withBlockSize( 8 ) );
+            // the channel holds the first block, modified, in its buffer
+            fc.write( getByteBuffer( 1024 * 4, (byte)'A' ) );
+            
+            // positional writes go through a duplicate channel that shares the
+            // write-back blocks; write within the modified block and past it
+            assertEquals( 100, fc.write( getByteBuffer( 100, (byte)'B' ), 1024 ) );
+            assertEquals( 100, fc.write( getByteBuffer( 100, (byte)'C' ), 1024 * 10 ) );
+            assertEquals( 1024 * 4, fc.position() );
+            fc.write( getByteBuffer( 100, (byte)'D' ) );
+            fc.close();
+            
+            fc = FileChannel.open( filePath, READ );
+            assertEquals( ( 1024 * 10 ) + 100, fc.size() );
+            ByteBuffer dst = ByteBuffer.allocate( (int)fc.size() );
+            while ( fc.read( dst ) > 0 );
+            fc.close();
+            assertEquals( 'A', dst.get( 1023 ) );
+            assertEquals( 'B', dst.get( 1024 ) );
+            assertEquals( 'B', dst.get( 1123 ) );
+            assertEquals( 'A', dst.get( 1124 ) );
+            assertEquals( 'D', dst.get( 1024 * 4 ) );
+            assertEquals( 0, dst.get( 1024 * 5 ) );
+            assertEquals( 'C', dst.get( 1024 * 10 ) );
+        } finally {
+            GaeVFS.setWriteBackBlocks( writeBackBlocks );
+        }
+    }
 
     @Test
     public void testPosition() throws IOException {
@@ -455,13 +622,113 @@ public class GaeFileChannelTestCase extends GaeVfsTestCase {
     }
 
     @Test
-    public void testTransferTo() {
-        fail( "Not yet implemented" );
+    public void testTransferTo() throws IOException {
+        Path srcPath = Paths.get( "docs/transferToSrc.txt" );
+        FileChannel src = FileChannel.open( srcPath, EnumSet.of( WRITE, CREATE_NEW ),
+                                                withBlockSize( 8 ) );
+        for ( int i = 0; i < 4; i++ ) {
+            src.write( getByteBuffer( i < 3 ? 1024 * 8 : 100, (byte)( 'A' + i ) ) );
+        }
+        long size = src.size();
+        src.close();
+        
+        // block-aligned transfer between GaeFileChannels copies blocks in bulk
+        src = FileChannel.open( srcPath, READ );
+        Path destPath = Paths.get( "docs/transferToDest.txt" );
+        FileChannel dest = FileChannel.open( destPath, EnumSet.of( WRITE, CREATE_NEW ),
+                                                withBlockSize( 8 ) );
+        assertEquals( size, src.transferTo( 0, size + 10, dest ) );
+        assertEquals( size, dest.position() );
+        assertEquals( size, dest.size() );
+        assertEquals( 0, src.position() );
+        dest.close();
+        assertContents( destPath, 0, size, 0 );
+        
+        // unaligned transfer to a non-GaeFileChannel
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals( size - 100, src.transferTo( 100, size, Channels.newChannel( out ) ) );
+        byte[] bytes = out.toByteArray();
+        for ( int i = 0; i < bytes.length; i++ ) {
+            assertEquals( 'A' + ( ( i + 100 ) / ( 1024 * 8 ) ), bytes[ i ] );
+        }
+        assertEquals( 0, src.transferTo( size, 10, Channels.newChannel( out ) ) );
+        src.close();
+        
+        try {
+            FileChannel.open( destPath, WRITE ).transferTo( 0, 10, Channels.newChannel( out ) );
+            fail( "expected NonReadableChannelException" );
+        } catch ( NonReadableChannelException e ) {
+        }
     }
 
     @Test
-    public void testTransferFrom() {
-        fail( "Not yet implemented" );
+    public void testTransferFrom() throws IOException {
+        byte[] bytes = new byte[ ( 1024 * 8 * 2 ) + 500 ];
+        for ( int i = 0; i < bytes.length; i++ ) {
+            bytes[ i ] = (byte)( 'A' + ( i / ( 1024 * 8 ) ) );
+        }
+        Path srcPath = Paths.get( "docs/transferFromSrc.txt" );
+        FileChannel src = FileChannel.open( srcPath, EnumSet.of( WRITE, CREATE_NEW ),
+                                                withBlockSize( 8 ) );
+        assertEquals( bytes.length, src.transferFrom(
+                Channels.newChannel( new ByteArrayInputStream( bytes ) ), 0, bytes.length * 2 ) );
+        assertEquals( 0, src.position() );
+        assertEquals( bytes.length, src.size() );
+        src.close();
+        assertContents( srcPath, 0, bytes.length, 0 );
+        
+        // block-aligned transfer between GaeFileChannels advances the source position
+        src = FileChannel.open( srcPath, READ );
+        src.position( 1024 * 8 );
+        Path destPath = Paths.get( "docs/transferFromDest.txt" );
+        FileChannel dest = FileChannel.open( destPath, EnumSet.of( WRITE, CREATE_NEW ),
+                                                withBlockSize( 8 ) );
+        assertEquals( 0, dest.transferFrom( src, 1, 10 ) ); // position > size
+        long count = bytes.length - ( 1024 * 8 );
+        assertEquals( count, dest.transferFrom( src, 0, count ) );
+        assertEquals( bytes.length, src.position() );
+        assertEquals( count, dest.size() );
+        dest.close();
+        src.close();
+        assertContents( destPath, 0, count, 1024 * 8 );
+        
+        // transferred bytes aren't overwritten by this channel's modified block
+        Path dirtyPath = Paths.get( "docs/transferFromDirty.txt" );
+        dest = FileChannel.open( dirtyPath, EnumSet.of( WRITE, CREATE_NEW ),
+                                    withBlockSize( 8 ) );
+        dest.write( getByteBuffer( 100, (byte)'X' ) );
+        dest.close();
+        dest = FileChannel.open( dirtyPath, WRITE );
+        dest.write( getByteBuffer( 10, (byte)'Y' ) );
+        assertEquals( 100, dest.transferFrom( Channels.newChannel( new ByteArrayInputStream(
+                                getByteBuffer( 100, (byte)'Z' ).array() ) ), 50, 100 ) );
+        assertEquals( 10, dest.position() );
+        assertEquals( 150, dest.size() );
+        dest.close();
+        
+        dest = FileChannel.open( dirtyPath, READ );
+        ByteBuffer dst = ByteBuffer.allocate( 150 );
+        while ( dest.read( dst ) > 0 );
+        dest.close();
+        for ( int i = 0; i < dst.capacity(); i++ ) {
+            assertEquals( i < 10 ? 'Y' : ( i < 50 ? 'X' : 'Z' ), dst.get( i ) );
+        }
+    }
+    
+    /**
+     * Verify that bytes in the range [pos, pos+len) of the file have the value
+     * written by the transfer tests, offset by <code>skip</code> bytes.
+     */
+    private void assertContents( Path path, long pos, long len, long skip )
+            throws IOException {
+        FileChannel fc = FileChannel.open( path, READ );
+        assertEquals( pos + len, fc.size() );
+        ByteBuffer dst = ByteBuffer.allocate( (int)len );
+        while ( dst.hasRemaining() && ( fc.read( dst, pos + dst.position() ) > 0 ) );
+        fc.close();
+        for ( int i = 0; i < len; i++ ) {
+            assertEquals( 'A' + ( ( i + skip ) / ( 1024 * 8 ) ), dst.get( i ) );
+        }
     }
 
     @Test
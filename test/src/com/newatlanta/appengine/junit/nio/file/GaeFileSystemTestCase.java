@@ -16,10 +16,13 @@
 package com.newatlanta.appengine.junit.nio.file;
 
 import java.util.Set;
+import java.util.regex.PatternSyntaxException;
 
 import org.junit.Test;
 
 import com.newatlanta.appengine.junit.vfs.gae.GaeVfsTestCase;
+import com.newatlanta.repackaged.java.nio.file.FileSystem;
+import com.newatlanta.repackaged.java.nio.file.PathMatcher;
 import com.newatlanta.repackaged.java.nio.file.Paths;
 
 public class GaeFileSystemTestCase extends GaeVfsTestCase {
@@ -76,7 +79,51 @@ public class GaeFileSystemTestCase extends GaeVfsTestCase {
 
     @Test
     public void testGetPathMatcher() {
-        fail( "Not yet implemented" );
+        FileSystem fileSystem = Paths.get( "/" ).getFileSystem();
+        
+        PathMatcher matcher = fileSystem.getPathMatcher( "glob:*.java" );
+        assertTrue( matcher.matches( Paths.get( "Foo.java" ) ) );
+        assertFalse( matcher.matches( Paths.get( "Foo.class" ) ) );
+        assertFalse( matcher.matches( Paths.get( "/src/Foo.java" ) ) );
+        
+        matcher = fileSystem.getPathMatcher( "glob:/src/**.java" );
+        assertTrue( matcher.matches( Paths.get( "/src/Foo.java" ) ) );
+        assertTrue( matcher.matches( Paths.get( "/src/com/Foo.java" ) ) );
+        assertFalse( matcher.matches( Paths.get( "/test/Foo.java" ) ) );
+        
+        matcher = fileSystem.getPathMatcher( "glob:*.{java,class}" );
+        assertTrue( matcher.matches( Paths.get( "Foo.java" ) ) );
+        assertTrue( matcher.matches( Paths.get( "Foo.class" ) ) );
+        assertFalse( matcher.matches( Paths.get( "Foo.jar" ) ) );
+        
+        matcher = fileSystem.getPathMatcher( "glob:foo?[0-9].txt" );
+        assertTrue( matcher.matches( Paths.get( "fooA1.txt" ) ) );
+        assertFalse( matcher.matches( Paths.get( "fooA.txt" ) ) );
+        assertFalse( matcher.matches( Paths.get( "fooAB.txt" ) ) );
+        
+        matcher = fileSystem.getPathMatcher( "glob:[!f]*" );
+        assertTrue( matcher.matches( Paths.get( "bar" ) ) );
+        assertFalse( matcher.matches( Paths.get( "foo" ) ) );
+        
+        matcher = fileSystem.getPathMatcher( "regex:.*\\.(txt|log)" );
+        assertTrue( matcher.matches( Paths.get( "/logs/app.log" ) ) );
+        assertFalse( matcher.matches( Paths.get( "/logs/app.xml" ) ) );
+        
+        try {
+            fileSystem.getPathMatcher( "*.java" );
+            fail( "expected IllegalArgumentException" );
+        } catch ( IllegalArgumentException e ) {
+        }
+        try {
+            fileSystem.getPathMatcher( "foo:*.java" );
+            fail( "expected UnsupportedOperationException" );
+        } catch ( UnsupportedOperationException e ) {
+        }
+        try {
+            fileSystem.getPathMatcher( "glob:[abc" );
+            fail( "expected PatternSyntaxException" );
+        } catch ( PatternSyntaxException e ) {
+        }
     }
 
     @Test
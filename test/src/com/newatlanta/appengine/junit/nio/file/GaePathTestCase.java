@@ -30,19 +30,23 @@ import static com.newatlanta.repackaged.java.nio.file.attribute.Attributes.readB
 import static com.newatlanta.repackaged.java.nio.file.attribute.PosixFilePermissions.asFileAttribute;
 import static com.newatlanta.repackaged.java.nio.file.attribute.PosixFilePermissions.fromString;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Arrays;
+import java.util.ConcurrentModificationException;
 import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.regex.PatternSyntaxException;
 
 import org.junit.Test;
 
+import com.newatlanta.appengine.junit.CountingDelegate;
 import com.newatlanta.appengine.junit.vfs.gae.GaeVfsTestCase;
 import com.newatlanta.appengine.nio.file.attribute.GaeFileAttributeView;
 import com.newatlanta.repackaged.java.nio.channels.SeekableByteChannel;
@@ -56,6 +60,7 @@ import com.newatlanta.repackaged.java.nio.file.FileAlreadyExistsException;
 import com.newatlanta.repackaged.java.nio.file.Files;
 import com.newatlanta.repackaged.java.nio.file.LinkOption;
 import com.newatlanta.repackaged.java.nio.file.NoSuchFileException;
+import com.newatlanta.repackaged.java.nio.file.NotDirectoryException;
 import com.newatlanta.repackaged.java.nio.file.OpenOption;
 import com.newatlanta.repackaged.java.nio.file.Path;
 import com.newatlanta.repackaged.java.nio.file.Paths;
@@ -320,6 +325,9 @@ public class GaePathTestCase extends GaeVfsTestCase {
         assertFalse( targetPath.exists() );
         assertEquals( targetPath, sourcePath.copyTo( targetPath ) );
         assertTrue( targetPath.exists() );
+        assertEquals( readBasicFileAttributes( sourcePath ).size(),
+                        readBasicFileAttributes( targetPath ).size() );
+        assertTrue( Arrays.equals( readAllBytes( sourcePath ), readAllBytes( targetPath ) ) );
         
         // copy to an existing file with REPLACE_EXISTING
         sourcePath = Paths.get(  "/images/small.jpg" );
@@ -518,23 +526,177 @@ public class GaePathTestCase extends GaeVfsTestCase {
         } catch ( ClosedDirectoryStreamException e ) {
         }
         
-        // TODO: test pathIter.remove()
-        fail( "Not yet implemented" );
+        // iterate a directory with more than one page of children
+        dirPath = Paths.get( "/dirStream" ).createDirectory();
+        int numFiles = 250;
+        for ( int i = 0; i < numFiles; i++ ) {
+            dirPath.resolve( "file" + ( 1000 + i ) + ".txt" ).createFile();
+        }
+        dirStream = dirPath.newDirectoryStream();
+        pathIter = dirStream.iterator();
+        Path prevPath = null;
+        int count = 0;
+        while ( pathIter.hasNext() ) {
+            Path child = pathIter.next();
+            assertEquals( dirPath, child.getParent() );
+            if ( prevPath != null ) {
+                assertTrue( prevPath.toString().compareTo( child.toString() ) < 0 );
+            }
+            prevPath = child;
+            if ( ( count++ % 2 ) == 0 ) {
+                pathIter.remove();
+                assertTrue( child.notExists() );
+                try {
+                    pathIter.remove();
+                    fail( "expected IllegalStateException" );
+                } catch ( IllegalStateException e ) {
+                }
+            }
+        }
+        dirStream.close();
+        assertEquals( numFiles, count );
+        
+        count = 0;
+        dirStream = dirPath.newDirectoryStream();
+        for ( Path child : dirStream ) {
+            assertTrue( child.exists() );
+            count++;
+        }
+        dirStream.close();
+        assertEquals( numFiles / 2, count );
     }
 
     @Test
-    public void testNewDirectoryStreamString() {
-        fail( "Not yet implemented" );
+    public void testNewDirectoryStreamString() throws IOException {
+        // more than one page of children of each type
+        Path dirPath = Paths.get( "/globStream" ).createDirectory();
+        int numFiles = 150;
+        for ( int i = 0; i < numFiles; i++ ) {
+            dirPath.resolve( "file" + ( 1000 + i ) + ".txt" ).createFile();
+            dirPath.resolve( "file" + ( 1000 + i ) + ".log" ).createFile();
+        }
+        assertEquals( numFiles, countEntries( dirPath.newDirectoryStream( "*.txt" ), ".txt" ) );
+        assertEquals( numFiles, countEntries( dirPath.newDirectoryStream( "*.log" ), ".log" ) );
+        assertEquals( numFiles * 2, countEntries( dirPath.newDirectoryStream( "*.{txt,log}" ), "" ) );
+        assertEquals( numFiles * 2, countEntries( dirPath.newDirectoryStream( "*" ), "" ) );
+        assertEquals( 20, countEntries( dirPath.newDirectoryStream( "file100?.*" ), "" ) );
+        assertEquals( 0, countEntries( dirPath.newDirectoryStream( "*.xml" ), "" ) );
+        
+        try {
+            dirPath.newDirectoryStream( "*.{txt" );
+            fail( "expected PatternSyntaxException" );
+        } catch ( PatternSyntaxException e ) {
+        }
+        try {
+            dirPath.resolve( "file1000.txt" ).newDirectoryStream( "*.txt" );
+            fail( "expected NotDirectoryException" );
+        } catch ( NotDirectoryException e ) {
+        }
+    }
+    
+    private static int countEntries( DirectoryStream<Path> dirStream, String suffix )
+            throws IOException {
+        int count = 0;
+        try {
+            for ( Path child : dirStream ) {
+                assertTrue( child.toString().endsWith( suffix ) );
+                count++;
+            }
+        } finally {
+            dirStream.close();
+        }
+        return count;
     }
     
     @Test
-    public void testNewDirectoryStreamFilterOfQsuperPath() {
-        fail( "Not yet implemented" );
+    public void testNewDirectoryStreamFilterOfQsuperPath() throws IOException {
+        Path dirPath = Paths.get( "/filterStream" ).createDirectory();
+        int numFiles = 250;
+        for ( int i = 0; i < numFiles; i++ ) {
+            dirPath.resolve( "file" + ( 1000 + i ) + ".txt" ).createFile();
+        }
+        final Set<Path> accepted = new HashSet<Path>();
+        DirectoryStream<Path> dirStream = dirPath.newDirectoryStream(
+                new DirectoryStream.Filter<Path>() {
+                    public boolean accept( Path entry ) {
+                        if ( entry.toString().endsWith( "5.txt" ) ) {
+                            accepted.add( entry );
+                            return true;
+                        }
+                        return false;
+                    }
+                } );
+        int count = 0;
+        for ( Path child : dirStream ) {
+            assertTrue( accepted.contains( child ) );
+            assertTrue( child.exists() );
+            count++;
+        }
+        dirStream.close();
+        assertEquals( numFiles / 10, count );
+        assertEquals( numFiles / 10, accepted.size() );
+        
+        try {
+            dirPath.newDirectoryStream( (DirectoryStream.Filter<Path>)null );
+            fail( "expected NullPointerException" );
+        } catch ( NullPointerException e ) {
+        }
     }
     
     @Test
-    public void testNewDirectoryStreamFilterOfQsuperPath1() {
-        fail( "Not yet implemented" );
+    public void testNewDirectoryStreamFilterOfQsuperPath1() throws IOException {
+        Path dirPath = Paths.get( "/filterStream1" ).createDirectory();
+        for ( int i = 0; i < 10; i++ ) {
+            dirPath.resolve( "file" + i + ".txt" ).createFile();
+        }
+        // a filter of a supertype of Path
+        DirectoryStream<Path> dirStream = dirPath.newDirectoryStream(
+                new DirectoryStream.Filter<Object>() {
+                    public boolean accept( Object entry ) {
+                        return entry.toString().endsWith( "3.txt" );
+                    }
+                } );
+        Iterator<Path> pathIter = dirStream.iterator();
+        assertTrue( pathIter.hasNext() );
+        assertEquals( dirPath.resolve( "file3.txt" ), pathIter.next() );
+        assertFalse( pathIter.hasNext() );
+        dirStream.close();
+        
+        // I/O errors thrown by the filter are thrown by the iterator
+        dirStream = dirPath.newDirectoryStream(
+                new DirectoryStream.Filter<Path>() {
+                    public boolean accept( Path entry ) throws IOException {
+                        throw new IOException( entry.toString() );
+                    }
+                } );
+        try {
+            dirStream.iterator().hasNext();
+            fail( "expected ConcurrentModificationException" );
+        } catch ( ConcurrentModificationException e ) {
+        }
+        dirStream.close();
+    }
+
+    @Test
+    public void testNewDirectoryStreamFilterReads() throws IOException {
+        Path dirPath = Paths.get( "/filterReads" ).createDirectory();
+        int numFiles = 250;
+        for ( int i = 0; i < numFiles; i++ ) {
+            dirPath.resolve( "file" + ( 1000 + i ) + ".txt" ).createFile();
+        }
+        DirectoryStream<Path> dirStream = dirPath.newDirectoryStream( "*.log" );
+        
+        // count the datastore and memcache calls made while filtering
+        CountingDelegate counter = CountingDelegate.install();
+        int calls;
+        try {
+            assertFalse( dirStream.iterator().hasNext() );
+        } finally {
+            calls = counter.uninstall();
+            dirStream.close();
+        }
+        // a few calls per page of children, not per child
+        assertTrue( "calls: " + calls, calls < ( numFiles / 10 ) );
     }
 
     @Test
@@ -1310,4 +1472,19 @@ public class GaePathTestCase extends GaeVfsTestCase {
         } catch ( UnsupportedOperationException e ) {
         }
     }
+    
+    private static byte[] readAllBytes( Path path ) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = path.newInputStream();
+        try {
+            byte[] buf = new byte[ 8192 ];
+            int n;
+            while ( ( n = in.read( buf ) ) != -1 ) {
+                out.write( buf, 0, n );
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
 }
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2009 New Atlanta Communications, LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.newatlanta.appengine.junit.vfs.gae;
+
+import static com.google.appengine.api.memcache.MemcacheServiceFactory.getMemcacheService;
+
+import java.io.OutputStream;
+import java.util.List;
+
+import org.apache.commons.vfs.FileObject;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.newatlanta.appengine.datastore.CachingDatastoreService;
+import com.newatlanta.appengine.junit.CountingDelegate;
+import com.newatlanta.appengine.vfs.provider.GaeFileObject;
+import com.newatlanta.appengine.vfs.provider.GaeVFS;
+
+/**
+ * Tests the GaeVFS files cache.
+ */
+public class GaeFilesCacheTestCase extends GaeVfsTestCase {
+
+    public void testResolveCachedFile() throws Exception {
+        FileObject file = GaeVFS.resolveFile( "gae://filesCache.txt" );
+        file.createFile();
+        assertSame( file, GaeVFS.resolveFile( "gae://filesCache.txt" ) );
+        file.delete();
+    }
+
+    public void testTtlRefresh() throws Exception {
+        int ttl = GaeVFS.getFilesCacheTtl();
+        try {
+            FileObject file = GaeVFS.resolveFile( "gae://filesCacheTtl.txt" );
+            file.createFile();
+            assertEquals( 0, file.getContent().getSize() );
+
+            // simulate another instance changing the file size
+            DatastoreService datastore = new CachingDatastoreService();
+            Entity entity = datastore.get( KeyFactory.createKey( "GaeFileObject",
+                                                    file.getName().getPath() ) );
+            entity.setProperty( "content-size", Long.valueOf( 10 ) );
+            datastore.put( entity );
+
+            // not refreshed, because the metadata version hasn't changed
+            GaeVFS.setFilesCacheTtl( 0 );
+            file = GaeVFS.resolveFile( "gae://filesCacheTtl.txt" );
+            assertEquals( 0, file.getContent().getSize() );
+
+            getMemcacheService().increment( "GaeFileObject.version:" +
+                                                file.getName().getPath(), 1 );
+
+            GaeVFS.setFilesCacheTtl( 60 );
+            file = GaeVFS.resolveFile( "gae://filesCacheTtl.txt" );
+            assertEquals( 0, file.getContent().getSize() ); // not checked
+
+            GaeVFS.setFilesCacheTtl( 0 );
+            file = GaeVFS.resolveFile( "gae://filesCacheTtl.txt" );
+            assertEquals( 10, file.getContent().getSize() ); // refreshed
+        } finally {
+            GaeVFS.setFilesCacheTtl( ttl );
+        }
+    }
+
+    public void testMetaDataVersion() throws Exception {
+        FileObject file = GaeVFS.resolveFile( "gae://filesCacheVersion.txt" );
+        file.createFile();
+        // this instance's own writes don't invalidate its cached metadata
+        OutputStream out = file.getContent().getOutputStream();
+        out.write( new byte[] { 1, 2, 3 } );
+        out.close();
+        assertSame( file, GaeVFS.resolveFile( "gae://filesCacheVersion.txt" ) );
+        assertEquals( 3, file.getContent().getSize() );
+        file.delete();
+        assertFalse( GaeVFS.resolveFile( "gae://filesCacheVersion.txt" ).exists() );
+    }
+
+    public void testResolveChildren() throws Exception {
+        int ttl = GaeVFS.getFilesCacheTtl();
+        try {
+            GaeVFS.setFilesCacheTtl( 0 );
+            GaeFileObject folder = (GaeFileObject)GaeVFS.resolveFile( "gae://filesCacheChildren" );
+            folder.createFolder();
+            int numFiles = 100;
+            for ( int i = 0; i < numFiles; i++ ) {
+                folder.resolveFile( "child" + i + ".txt" ).createFile();
+            }
+            List<String> childPaths = folder.getChildPaths( null, numFiles );
+            List<FileObject> children = folder.resolveChildren( childPaths );
+            assertEquals( numFiles, children.size() );
+
+            // simulate another instance writing one of the children
+            FileObject changed = children.get( 0 );
+            DatastoreService datastore = new CachingDatastoreService();
+            Entity entity = datastore.get( KeyFactory.createKey( "GaeFileObject",
+                                                    changed.getName().getPath() ) );
+            entity.setProperty( "content-size", Long.valueOf( 10 ) );
+            datastore.put( entity );
+            getMemcacheService().increment( "GaeFileObject.version:" +
+                                                changed.getName().getPath(), 1 );
+
+            // cached children are checked in bulk, not one at a time
+            CountingDelegate counter = CountingDelegate.install();
+            int calls;
+            try {
+                children = folder.resolveChildren( childPaths );
+            } finally {
+                calls = counter.uninstall();
+            }
+            assertTrue( "calls: " + calls, calls < ( numFiles / 10 ) );
+            assertEquals( 10, children.get( 0 ).getContent().getSize() ); // refreshed
+            assertEquals( 0, children.get( 1 ).getContent().getSize() );
+        } finally {
+            GaeVFS.setFilesCacheTtl( ttl );
+        }
+    }
+
+    public void testEviction() throws Exception {
+        int size = GaeVFS.getFilesCacheSize();
+        try {
+            GaeVFS.setFilesCacheSize( 20 );
+            FileObject first = GaeVFS.resolveFile( "gae://evict0.txt" );
+            for ( int i = 1; i < 100; i++ ) {
+                GaeVFS.resolveFile( "gae://evict" + i + ".txt" );
+            }
+            // the least-recently used file was evicted and is resolved again
+            assertNotSame( first, GaeVFS.resolveFile( "gae://evict0.txt" ) );
+            
+            try {
+                GaeVFS.setFilesCacheSize( 0 );
+                fail( "expected IllegalArgumentException" );
+            } catch ( IllegalArgumentException e ) {
+            }
+        } finally {
+            GaeVFS.setFilesCacheSize( size );
+        }
+    }
+}
@@ -15,6 +15,8 @@
  */
 package com.newatlanta.appengine.junit.vfs.gae;
 
+import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
@@ -25,9 +27,13 @@ import org.apache.commons.vfs.Selectors;
 import com.google.appengine.api.datastore.Blob;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.FilterOperator;
 import com.newatlanta.appengine.datastore.CachingDatastoreService;
+import com.newatlanta.appengine.vfs.provider.GaeFileObject;
 import com.newatlanta.appengine.vfs.provider.GaeVFS;
 
 /**
@@ -161,6 +167,161 @@ public class GaeFolderTestCase extends GaeVfsTestCase {
 		findFiles = rootObject.findFiles( Selectors.SELECT_SELF_AND_CHILDREN );
 	}
 	
+	public void testChildIndex() throws Exception {
+		FileObject testFolder = GaeVFS.resolveFile( "gae://testChildIndex" );
+		testFolder.createFolder();
+		String[] names = { "e", "a", "d", "b", "c" };
+		for ( String name : names ) {
+			testFolder.resolveFile( name ).createFile();
+		}
+		GaeFileObject gaeFolder = (GaeFileObject)testFolder;
+		String folderPath = testFolder.getName().getPath();
+		
+		// child paths are returned a page at a time in path order
+		List<String> page = gaeFolder.getChildPaths( null, 2 );
+		assertEquals( 2, page.size() );
+		assertEquals( folderPath + "/a", page.get( 0 ) );
+		assertEquals( folderPath + "/b", page.get( 1 ) );
+		page = gaeFolder.getChildPaths( page.get( 1 ), 10 );
+		assertEquals( 3, page.size() );
+		assertEquals( folderPath + "/c", page.get( 0 ) );
+		assertEquals( folderPath + "/e", page.get( 2 ) );
+		assertEquals( names.length, testFolder.getChildren().length );
+		
+		// deleting a child removes its index entry
+		testFolder.resolveFile( "c" ).delete();
+		page = gaeFolder.getChildPaths( null, 10 );
+		assertEquals( 4, page.size() );
+		assertFalse( page.contains( folderPath + "/c" ) );
+		
+		// index entries are root entities, queried by the folder path
+		Query query = new Query( "GaeFileObjectChild" ).setKeysOnly();
+		query.addFilter( "parent-path", FilterOperator.EQUAL, folderPath );
+		assertEquals( 4, datastore.prepare( query ).countEntities() );
+		assertNull( datastore.get( KeyFactory.createKey( "GaeFileObjectChild",
+												folderPath + "/a" ) ).getParent() );
+		
+		// folders with the old child keys property are migrated without
+		// changing their last modified time
+		Key folderKey = KeyFactory.createKey( "GaeFileObject", folderPath );
+		Entity entity = datastore.get( folderKey );
+		entity.setProperty( "child-keys", Arrays.asList( KeyFactory.createKey(
+												"GaeFileObject", folderPath + "/a" ) ) );
+		datastore.put( entity );
+		datastore.delete( KeyFactory.createKey( "GaeFileObjectChild", folderPath + "/a" ) );
+		Object lastModified = entity.getProperty( "last-modified" );
+		testFolder.refresh();
+		page = gaeFolder.getChildPaths( null, 10 );
+		assertEquals( 4, page.size() );
+		assertEquals( folderPath + "/a", page.get( 0 ) );
+		entity = datastore.get( folderKey );
+		assertFalse( entity.hasProperty( "child-keys" ) );
+		assertEquals( lastModified, entity.getProperty( "last-modified" ) );
+		
+		testFolder.delete( Selectors.SELECT_ALL );
+		assertFalse( testFolder.exists() );
+	}
+	
+	public void testDeleteTree() throws Exception {
+		FileObject testFolder = GaeVFS.resolveFile( "gae://testDeleteTree" );
+		testFolder.createFolder();
+		// more children than fit in a single batch
+		int numFiles = 600;
+		for ( int i = 0; i < numFiles; i++ ) {
+			testFolder.resolveFile( "file" + i ).createFile();
+		}
+		FileObject subFolder = testFolder.resolveFile( "sub/subsub" );
+		subFolder.createFolder();
+		FileObject contentFile = subFolder.resolveFile( "content.txt" );
+		OutputStream out = contentFile.getContent().getOutputStream();
+		out.write( new byte[ 1000 ] );
+		out.close();
+		Key blockKey = KeyFactory.createKey( contentFile.getName().getPath(), 1 );
+		assertNotNull( datastore.get( blockKey ) );
+		
+		// files + "sub" + "subsub" + "content.txt" + testFolder
+		assertEquals( numFiles + 4, testFolder.delete( Selectors.SELECT_ALL ) );
+		assertFalse( testFolder.exists() );
+		assertFalse( subFolder.exists() );
+		assertFalse( contentFile.exists() );
+		assertFalse( testFolder.resolveFile( "file0" ).exists() );
+		try {
+			datastore.get( blockKey );
+			fail( "expected EntityNotFoundException" );
+		} catch ( EntityNotFoundException e ) {
+		}
+		Key metadataKey = KeyFactory.createKey( "GaeFileObject", testFolder.getName().getPath() );
+		Query query = new Query( "GaeFileObjectChild" ).setKeysOnly();
+		query.addFilter( "parent-path", FilterOperator.EQUAL, metadataKey.getName() );
+		assertEquals( 0, datastore.prepare( query ).countEntities() );
+		assertFalse( Arrays.asList( GaeVFS.resolveFile( "/" ).getChildren() ).contains( testFolder ) );
+		
+		// the tree can be re-created
+		testFolder.createFolder();
+		testFolder.resolveFile( "file0" ).createFile();
+		assertEquals( 1, testFolder.getChildren().length );
+		testFolder.delete( Selectors.SELECT_ALL );
+	}
+	
+	public void testCombinedLocal() throws Exception {
+		// local files and folders are found via the local file index
+		FileObject localFile = GaeVFS.resolveFile( "docs/small.txt" );
+		assertEquals( "file", localFile.getName().getScheme() );
+		assertTrue( localFile.exists() );
+		
+		FileObject docsFolder = GaeVFS.resolveFile( "docs" );
+		assertEquals( "gae", docsFolder.getName().getScheme() );
+		assertTrue( docsFolder.exists() ); // GaeVFS "shadow" of local folder
+		assertEquals( 2, docsFolder.getChildren().length );
+		
+		FileObject missingFile = GaeVFS.resolveFile( "docs/missing.txt" );
+		assertEquals( "gae", missingFile.getName().getScheme() );
+		assertFalse( missingFile.exists() );
+		
+		FileObject gaeFile = GaeVFS.resolveFile( "gae://images/combined/new.txt" );
+		assertTrue( gaeFile.getParent().getParent().exists() );
+		assertFalse( gaeFile.getParent().exists() );
+	}
+	
+	public void testMissingFileCache() throws Exception {
+		FileObject missingFile = GaeVFS.resolveFile( "gae://testMissingFile.txt" );
+		assertFalse( missingFile.exists() );
+		
+		// simulate another instance creating the file
+		Entity entity = new Entity( "GaeFileObject", missingFile.getName().getPath() );
+		entity.setProperty( "filetype", "file" );
+		entity.setProperty( "last-modified", Long.valueOf( System.currentTimeMillis() ) );
+		entity.setProperty( "content-size", Long.valueOf( 0 ) );
+		entity.setProperty( "block-size", Long.valueOf( GaeVFS.getBlockSize() ) );
+		datastore.put( entity );
+		missingFile.refresh();
+		assertFalse( missingFile.exists() ); // cached as missing
+		
+		int ttl = GaeVFS.getMissingFileCacheTtl();
+		try {
+			GaeVFS.setMissingFileCacheTtl( 0 ); // disables and clears the cache
+			missingFile.refresh();
+			assertTrue( missingFile.exists() );
+		} finally {
+			GaeVFS.setMissingFileCacheTtl( ttl );
+		}
+		
+		// deleting caches the file as missing, creating removes it
+		missingFile.delete();
+		missingFile.refresh();
+		assertFalse( missingFile.exists() );
+		missingFile.createFile();
+		missingFile.refresh();
+		assertTrue( missingFile.exists() );
+		missingFile.delete();
+		
+		try {
+			GaeVFS.setMissingFileCacheSize( -1 );
+			fail( "expected IllegalArgumentException" );
+		} catch ( IllegalArgumentException e ) {
+		}
+	}
+	
 	private void assertEntity( FileObject fileObject ) throws Exception {
 		Key key = KeyFactory.createKey( "GaeFileObject", fileObject.getName().getPath() );
 		assertEntity( datastore.get( key ) );
@@ -177,13 +338,12 @@ public class GaeFolderTestCase extends GaeVfsTestCase {
 			assertFalse( entity.hasProperty( "block-size" ) );
 			assertFalse( entity.hasProperty( "block-keys" ) );
 			assertFalse( entity.hasProperty( "content-size" ) );
-			if ( entity.hasProperty( "child-keys" ) ) {
-				List<Key> childKeys = (List<Key>)entity.getProperty( "child-keys" );
-				Map<Key, Entity> children = datastore.get( childKeys );
-				assertEquals( childKeys.size(), children.size() );
-				for ( Entity child : children.values() ) {
-					assertEntity( child );
-				}
+			assertFalse( entity.hasProperty( "child-keys" ) );
+			Query query = new Query( "GaeFileObjectChild" ).setKeysOnly();
+			query.addFilter( "parent-path", FilterOperator.EQUAL, entity.getKey().getName() );
+			for ( Entity entry : datastore.prepare( query ).asIterable() ) {
+				assertEntity( datastore.get( KeyFactory.createKey( "GaeFileObject",
+											entry.getKey().getName() ) ) );
 			}
 		} else if ( typeName.equals( "file" ) ) {
 			assertFalse( entity.hasProperty( "child-keys" ) );
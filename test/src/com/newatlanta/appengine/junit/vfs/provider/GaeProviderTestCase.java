@@ -93,7 +93,7 @@ public class GaeProviderTestCase extends AbstractProviderTestCase implements Pro
 	/**
      * Returns the base folder for tests. Copies test files from the local file
      * system to GaeVFS. Note that SVN (.svn) folders are not copied; if the are,
-     * then the size of the LRUFilesCache created within GaeFileSystemManager.prepare()
+     * then the files cache size (see GaeVFS.setFilesCacheSize())
      * must be increased to avoid testcase failures.
      */
 	@Override